@@ -0,0 +1,64 @@
+package miniplc0java.analyser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import miniplc0java.error.CompileError;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 表达式分析的速度：很多条普通的表达式，和一条嵌套很深的表达式
+ *
+ * token 事先读好，只测语法分析和生成指令
+ *
+ * gradle jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+    @Param({ "flat", "nested" })
+    public String shape;
+
+    private TokenBuffer tokens;
+
+    @Setup
+    public void setUp() throws CompileError {
+        var sb = new StringBuilder("begin\nvar a = 1;\nvar b = 2;\n");
+        if (shape.equals("flat")) {
+            for (int i = 0; i < 2000; i++) {
+                sb.append("a = a * 3 + (b - ").append(i).append(") / -2 - +b;\n");
+            }
+        } else {
+            // 递归的分析器在这个深度上会栈溢出
+            sb.append("print(").append("-(a+".repeat(20000)).append('b').append(")".repeat(20000)).append(");\n");
+        }
+        sb.append("end\n");
+        var source = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        tokens = new TokenBuffer();
+        new Tokenizer(source).nextTokens(tokens, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int analyse() throws CompileError {
+        var count = new int[1];
+        new Analyser(tokens, instruction -> count[0]++).analyse();
+        return count[0];
+    }
+}
@@ -0,0 +1,141 @@
+package miniplc0java.bytecode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.listing.ListingWriter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 文本清单和二进制字节码的写出和读入速度
+ *
+ * 大小在 setUp() 里打印出来：这里的 3 万条指令文本是 184 KB，字节码是 59 KB。
+ * writeListing() 是 App 实际用的文本输出
+ *
+ * gradle jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    private List<Instruction> instructions;
+    private byte[] text;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() throws CompileError, IOException {
+        var sb = new StringBuilder("begin\n");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("var v").append(i).append(" = ").append(i * 37 % 1000).append(";\n");
+        }
+        for (int i = 1; i < 2000; i++) {
+            sb.append("v").append(i).append(" = v").append(i - 1).append(" * ").append(i % 7 + 1).append(" - (v")
+                    .append(i).append(" + -").append(i).append(") / 3;\nprint(v").append(i).append(");\n");
+        }
+        sb.append("end\n");
+        instructions = new ArrayList<>();
+        new Analyser(new Tokenizer(sb.toString().getBytes(StandardCharsets.US_ASCII)), instructions::add).analyse();
+        text = writeText();
+        binary = writeBinary();
+        System.out.println();
+        System.out.println(instructions.size() + " instructions: text " + text.length + " bytes, binary "
+                + binary.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] writeText() {
+        var out = new ByteArrayOutputStream();
+        var print = new PrintStream(out);
+        for (var instruction : instructions) {
+            print.println(instruction.toString());
+        }
+        print.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * 和 writeText() 一样的输出，不经过 String 和 PrintStream
+     */
+    @Benchmark
+    public byte[] writeListing() {
+        var out = new ByteArrayOutputStream(text.length);
+        var writer = new ListingWriter(out);
+        instructions.forEach(writer);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] writeBinary() throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new BytecodeWriter(out);
+        instructions.forEach(writer);
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    /**
+     * 把文本清单解析回和 Bytecode 一样的 int 数组
+     */
+    @Benchmark
+    public int[] loadText() {
+        var code = new int[16];
+        int count = 0;
+        int p = 0;
+        while (p < text.length) {
+            int start = p;
+            while (text[p] != ' ' && text[p] != '\n') {
+                p++;
+            }
+            var op = Operation.valueOf(new String(text, start, p - start, StandardCharsets.US_ASCII));
+            int x = 0;
+            if (text[p] == ' ') {
+                boolean negative = text[++p] == '-';
+                if (negative) {
+                    p++;
+                }
+                while (text[p] != '\n') {
+                    x = x * 10 + text[p++] - '0';
+                }
+                x = negative ? -x : x;
+            }
+            p++;
+            if (2 * count + 2 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+            }
+            code[2 * count] = op.ordinal();
+            code[2 * count + 1] = x;
+            count++;
+        }
+        return code;
+    }
+
+    @Benchmark
+    public int[] loadBinary() throws IOException {
+        return Bytecode.load(binary, binary.length).getCode();
+    }
+}
@@ -0,0 +1,110 @@
+package miniplc0java.tokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 比较逐字节扫描（默认）、一次 8 字节扫描和先逐字节再换宽路径在不同缩进的输入上的速度
+ *
+ * gradle jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    /** 每条语句前面的缩进 */
+    @Param({ "4", "64" })
+    public int indent;
+
+    private byte[] source;
+
+    @Setup
+    public void setUp() {
+        var sb = new StringBuilder("begin\n");
+        var pad = " ".repeat(indent);
+        for (int i = 0; i < 2000; i++) {
+            sb.append(pad).append("var variable").append(i).append(" = ").append(1000000000 + i).append(";\n");
+        }
+        for (int i = 0; i < 2000; i++) {
+            sb.append(pad).append("print(variable").append(i).append(");\n");
+        }
+        sb.append("end\n");
+        source = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public int runsScalar() {
+        int p = 0;
+        int count = 0;
+        while (p < source.length) {
+            p = ByteRuns.skipSpacesScalar(source, p, source.length);
+            int end = ByteRuns.alnumRunEndScalar(source, p, source.length);
+            p = end > p ? end : p + 1;
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int runsWide() {
+        int p = 0;
+        int count = 0;
+        while (p < source.length) {
+            p = ByteRuns.skipSpacesWide(source, p, source.length);
+            int end = ByteRuns.alnumRunEndWide(source, p, source.length);
+            p = end > p ? end : p + 1;
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int runsMixed() {
+        int p = 0;
+        int count = 0;
+        while (p < source.length) {
+            p = ByteRuns.skipSpaces(source, p, source.length);
+            int end = ByteRuns.alnumRunEnd(source, p, source.length);
+            p = end > p ? end : p + 1;
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int tokenizeScalar() throws TokenizeError {
+        return tokenize();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dminiplc0java.wideScan=true")
+    public int tokenizeMixed() throws TokenizeError {
+        return tokenize();
+    }
+
+    private int tokenize() throws TokenizeError {
+        var tokenizer = new Tokenizer(source);
+        int count = 0;
+        while (tokenizer.nextToken().getTokenType() != TokenType.EOF) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,78 @@
+package miniplc0java.vm;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * MiniVm 几种执行方式的速度：同一个 3 万多条指令、很少输出的程序
+ *
+ * run() 复用同一个 MiniVm，翻译只在第一次做；decodeAndRun() 每次新建，包括翻译的时间
+ *
+ * gradle jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({ "LIST", "SWITCH" })
+    public MiniVm.Engine engine;
+
+    private List<Instruction> instructions;
+    private PrintStream out;
+    private MiniVm vm;
+
+    @Setup
+    public void setUp() throws CompileError {
+        var sb = new StringBuilder("begin\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("var v").append(i).append(" = ").append(i * 37 % 1000).append(";\n");
+        }
+        for (int i = 0; i < 2000; i++) {
+            int a = i % 200;
+            int b = (i * 7 + 3) % 200;
+            sb.append("v").append(a).append(" = v").append(b).append(" * ").append(i % 7 + 1).append(" - (v")
+                    .append(a).append(" + -").append(i).append(") / 3 + v").append((a + 1) % 200).append(";\n");
+            if (i % 100 == 0) {
+                sb.append("print(v").append(a).append(");\n");
+            }
+        }
+        sb.append("end\n");
+        instructions = new Analyser(new Tokenizer(sb.toString().getBytes(StandardCharsets.US_ASCII))).analyse();
+        out = new PrintStream(OutputStream.nullOutputStream());
+        vm = new MiniVm(instructions, out);
+    }
+
+    @Benchmark
+    public void run() {
+        // Run() 不清空上一次留下的栈，LIST 每次都要新建
+        (engine == MiniVm.Engine.LIST ? new MiniVm(instructions, out) : vm).Run(engine);
+    }
+
+    @Benchmark
+    public void decodeAndRun() {
+        new MiniVm(instructions, out).Run(engine);
+    }
+}
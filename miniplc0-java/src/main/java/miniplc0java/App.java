@@ -1,131 +1,433 @@
 package miniplc0java;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.function.Consumer;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.ast.AstArena;
+import miniplc0java.ast.CodeGenerator;
+import miniplc0java.ast.InstructionLifter;
+import miniplc0java.ast.SlotAllocator;
+import miniplc0java.ast.SubexpressionEliminator;
+import miniplc0java.bytecode.BytecodeWriter;
+import miniplc0java.cache.CompileCache;
 import miniplc0java.error.CompileError;
+import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.listing.ListingWriter;
+import miniplc0java.optimizer.CompileTimeEvaluator;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.server.CompileClient;
+import miniplc0java.server.CompileServer;
+import miniplc0java.tokenizer.SourceReader;
 import miniplc0java.tokenizer.StringIter;
-import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
 
-import net.sourceforge.argparse4j.*;
-import net.sourceforge.argparse4j.impl.Arguments;
-import net.sourceforge.argparse4j.inf.ArgumentAction;
-import net.sourceforge.argparse4j.inf.ArgumentParser;
-import net.sourceforge.argparse4j.inf.ArgumentParserException;
-import net.sourceforge.argparse4j.inf.Namespace;
-
 public class App {
-    public static void main(String[] args) throws CompileError {
-        var argparse = buildArgparse();
-        Namespace result;
+    /** 每次从词法分析器取多少个 token */
+    private static final int TOKEN_BATCH = 1024;
+
+    private final Path cwd;
+    private final InputStream stdin;
+    private final PrintStream stdout;
+    private final PrintStream stderr;
+
+    /** 打开的输入和输出文件，编译完要关掉，在编译服务器里不能漏 */
+    private InputStream input = null;
+    private PrintStream target = null;
+    /** 输出文件的通道，文本清单不经过 target 直接写到这里 */
+    private FileChannel targetChannel = null;
+    private ListingWriter listing = null;
+
+    private Tokenizer tokenizer = null;
+    /** 报告了几个编译错误 */
+    private int errorCount = 0;
+
+    App(Path cwd, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+        this.cwd = cwd;
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    public static void main(String[] args) {
+        int code;
+        if (args.length > 0 && args[0].equals("--server")) {
+            code = CompileServer.main(Arrays.copyOfRange(args, 1, args.length), System.err);
+        } else if (args.length > 0 && args[0].equals("--client")) {
+            code = CompileClient.run(Arrays.copyOfRange(args, 1, args.length), Path.of("").toAbsolutePath(), System.in,
+                    System.out, System.err);
+        } else {
+            code = run(args, Path.of("").toAbsolutePath(), System.in, System.out, System.err);
+        }
+        System.out.flush();
+        System.exit(code);
+    }
+
+    /**
+     * 执行一次命令行，不调用 System.exit，也不碰 System.in/out/err，编译服务器在同一个进程里反复调用它
+     *
+     * @param args   命令行参数
+     * @param cwd    相对路径相对于哪个目录
+     * @param stdin  输入文件是 - 时从这里读
+     * @param stdout 输出文件是 - 时写到这里
+     * @param stderr 错误信息写到这里
+     * @return 退出码
+     */
+    public static int run(String[] args, Path cwd, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+        // 常见的命令行不加载 argparse4j
+        var result = Options.parseSimple(args);
+        if (result == null) {
+            result = CommandLine.parse(args, stdout, stderr);
+            if (result == null) {
+                return 0;
+            }
+        }
+
+        if (result.getBoolean("batch")) {
+            return BatchCompiler.run(result, cwd, stdout, stderr);
+        }
+        var app = new App(cwd, stdin, stdout, stderr);
         try {
-            result = argparse.parseArgs(args);
-        } catch (ArgumentParserException e1) {
-            argparse.handleError(e1);
-            return;
+            return app.compile(result);
+        } finally {
+            app.close();
         }
+    }
 
+    void close() {
+        try {
+            if (input != null && input != stdin) {
+                input.close();
+            }
+        } catch (IOException e) {
+            // 已经读完了
+        }
+        if (listing != null) {
+            listing.flush();
+        }
+        if (target != null && target != stdout) {
+            target.close();
+        } else {
+            stdout.flush();
+        }
+    }
+
+    int compile(Options result) {
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
+        var stream = result.getBoolean("stream");
+        var recover = result.getBoolean("recover");
+        var binary = result.getString("emit").equals("binary");
+        int jobs = result.getInt("jobs");
 
-        InputStream input;
-        if (inputFileName.equals("-")) {
-            input = System.in;
-        } else {
-            try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
-                System.err.println("Cannot find input file.");
-                e.printStackTrace();
-                System.exit(2);
-                return;
+        byte[] source = null;
+        try {
+            if (stream) {
+                // 流式读取，字符只保留一个窗口，行首表仍然每行占 4 个字节
+                input = inputFileName.equals("-") ? stdin : Files.newInputStream(cwd.resolve(inputFileName));
+                tokenizer = new Tokenizer(new StringIter(SourceReader.openStream(input)));
+            } else {
+                source = inputFileName.equals("-") ? stdin.readAllBytes()
+                        : Files.readAllBytes(cwd.resolve(inputFileName));
+                tokenizer = new Tokenizer(source, source.length, jobs);
             }
+        } catch (NoSuchFileException e) {
+            stderr.println("Cannot find input file.");
+            e.printStackTrace(stderr);
+            return 2;
+        } catch (IOException e) {
+            stderr.println("Cannot read input file.");
+            e.printStackTrace(stderr);
+            return 2;
         }
 
-        PrintStream output;
         if (outputFileName.equals("-")) {
-            output = System.out;
+            target = stdout;
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                var file = new FileOutputStream(cwd.resolve(outputFileName).toFile());
+                target = new PrintStream(file);
+                targetChannel = file.getChannel();
             } catch (FileNotFoundException e) {
-                System.err.println("Cannot open output file.");
-                e.printStackTrace();
-                System.exit(2);
-                return;
+                stderr.println("Cannot open output file.");
+                e.printStackTrace(stderr);
+                return 2;
             }
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
-        var tokenizer = tokenize(iter);
+        // 编译缓存：命中时直接把缓存的输出写出去，不做词法和语法分析
+        var cacheDir = result.getString("cache_dir");
+        CompileCache cache = null;
+        String cacheKey = null;
+        if (cacheDir != null && source != null) {
+            try {
+                cache = new CompileCache(cwd.resolve(cacheDir), result.getLong("cache_size") * 1024 * 1024);
+                cacheKey = CompileCache.key(cacheOptions(result), source, source.length);
+            } catch (IOException e) {
+                stderr.println("Cannot use the compile cache: " + e);
+                cache = null;
+            }
+        }
+        if (cache != null) {
+            try {
+                if (cache.lookup(cacheKey, target, stderr)) {
+                    printCacheStats(result, cache);
+                    return 0;
+                }
+            } catch (IOException e) {
+                stderr.println("Cannot read the compile cache: " + e);
+                return 2;
+            }
+        }
+        // 没有命中的时候先输出到内存里，成功以后再写出去并存进缓存；优化的提示也一样，命中时要重放
+        var captured = cache == null ? null : new ByteArrayOutputStream();
+        var output = captured == null ? target : new PrintStream(captured);
+        var capturedMessages = cache == null ? null : new ByteArrayOutputStream();
+        var messages = capturedMessages == null ? stderr : new PrintStream(capturedMessages);
+        // 文本清单攒成大块直接写到文件的通道里，close() 时写出最后一块
+        if (!binary || result.getBoolean("tokenize")) {
+            listing = new ListingWriter(captured != null ? Channels.newChannel(captured)
+                    : targetChannel != null ? targetChannel : Channels.newChannel(target));
+        }
 
-        if (result.getBoolean("tokenize")) {
+        if (stream && result.getBoolean("tokenize")) {
+            // 流式输出，遇到错误时已经输出的部分会保留
+            var tokens = new TokenBuffer(TOKEN_BATCH);
+            try {
+                do {
+                    tokens.clear();
+                    tokenizer.nextTokens(tokens, TOKEN_BATCH);
+                    listing.tokens(tokens, 0, withoutEof(tokens));
+                } while (!endsWithEof(tokens));
+            } catch (Exception e) {
+                printError(e);
+                return 0;
+            }
+        } else if (stream && result.getBoolean("analyse")) {
+            // 流式输出，每生成一条指令就输出一条；字节码的指令条数和最大深度写在末尾，
+            // 出错时已经写出的部分没有末尾，读的时候会被当成截断的字节码拒绝
+            var writer = binary ? new BytecodeWriter(output) : null;
+            Consumer<Instruction> sink = binary ? writer : listing;
+            if (result.getBoolean("evaluate")) {
+                sink = new CompileTimeEvaluator(sink);
+            }
+            var analyzer = new Analyser(tokenizer, sink);
+            try {
+                analyzer.analyse();
+            } catch (Exception e) {
+                printError(e);
+                return 0;
+            }
+            if (binary) {
+                finishBytecode(writer);
+            }
+        } else if (recover && result.getBoolean("tokenize")) {
+            // 跳过出错的 token，把所有错误一起输出
+            var tokens = new TokenBuffer();
+            var errors = new ArrayList<CompileError>();
+            while (!endsWithEof(tokens)) {
+                try {
+                    tokenizer.nextTokens(tokens, TOKEN_BATCH);
+                } catch (TokenizeError e) {
+                    errors.add(e);
+                }
+            }
+            if (!errors.isEmpty()) {
+                printErrors(errors);
+                return 0;
+            }
+            listing.tokens(tokens, 0, withoutEof(tokens));
+        } else if (result.getBoolean("tokenize")) {
             // tokenize
-            var tokens = new ArrayList<Token>();
+            var tokens = new TokenBuffer();
             try {
-                while (true) {
-                    var token = tokenizer.nextToken();
-                    if (token.getTokenType().equals(TokenType.EOF)) {
-                        break;
-                    }
-                    tokens.add(token);
+                while (!endsWithEof(tokens)) {
+                    tokenizer.nextTokens(tokens, TOKEN_BATCH);
                 }
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(0);
-                return;
-            }
-            for (Token token : tokens) {
-                output.println(token.toString());
+                printError(e);
+                return 0;
             }
+            listing.tokens(tokens, 0, withoutEof(tokens));
         } else if (result.getBoolean("analyse")) {
             // analyze
-            var analyzer = new Analyser(tokenizer);
-            List<Instruction> instructions;
-            try {
-                instructions = analyzer.analyse();
-            } catch (Exception e) {
-                // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(0);
-                return;
+            var reuseSlots = result.getBoolean("reuse_slots");
+            var cse = result.getBoolean("cse");
+            var lifter = result.getBoolean("ast") || reuseSlots || cse ? new InstructionLifter(new AstArena()) : null;
+            List<Instruction> instructions = new ArrayList<>();
+            Consumer<Instruction> sink = lifter == null ? instructions::add : lifter;
+            if (result.getBoolean("evaluate")) {
+                // 先在编译时执行，后面的阶段只看到执行的结果
+                sink = new CompileTimeEvaluator(sink);
+            }
+            var analyzer = new Analyser(tokenizer, sink);
+            if (recover) {
+                var errors = analyzer.analyseAll();
+                if (!errors.isEmpty()) {
+                    printErrors(errors);
+                    return 0;
+                }
+            } else {
+                try {
+                    analyzer.analyse();
+                } catch (Exception e) {
+                    // 遇到错误不输出，直接退出
+                    printError(e);
+                    return 0;
+                }
+            }
+            if (lifter != null) {
+                var arena = lifter.finish();
+                if (cse) {
+                    var eliminator = new SubexpressionEliminator();
+                    eliminator.run(arena);
+                    messages.println("Reused " + eliminator.getReused() + " common subexpressions, instructions: "
+                            + eliminator.getInstructionsBefore() + " -> " + eliminator.getInstructionsAfter() + ".");
+                }
+                if (reuseSlots) {
+                    var allocator = new SlotAllocator();
+                    allocator.run(arena);
+                    messages.println("Variable slots: " + allocator.getSlotsBefore() + " -> "
+                            + allocator.getSlotsAfter() + ".");
+                }
+                instructions = new CodeGenerator().generate(arena);
+            }
+            if (result.getBoolean("optimize")) {
+                var optimizer = Optimizer.standard();
+                instructions = optimizer.optimize(instructions);
+                messages.println("Optimizer removed " + optimizer.getRemoved() + " instructions.");
             }
-            for (Instruction instruction : instructions) {
-                output.println(instruction.toString());
+            if (binary) {
+                var writer = new BytecodeWriter(output);
+                instructions.forEach(writer);
+                finishBytecode(writer);
+            } else {
+                instructions.forEach(listing);
             }
         } else {
-            System.err.println("Please specify either '--analyse' or '--tokenize'.");
-            System.exit(3);
+            stderr.println("Please specify either '--analyse' or '--tokenize'.");
+            return 3;
+        }
+
+        if (captured != null) {
+            messages.flush();
+            stderr.write(capturedMessages.toByteArray(), 0, capturedMessages.size());
+            output.flush();
+            if (listing != null) {
+                listing.flush();
+            }
+            try {
+                captured.writeTo(target);
+                target.flush();
+            } catch (IOException e) {
+                stderr.println("Cannot write output file.");
+                e.printStackTrace(stderr);
+                return 2;
+            }
+            try {
+                cache.store(cacheKey, captured.toByteArray(), capturedMessages.toByteArray());
+            } catch (IOException e) {
+                stderr.println("Cannot write the compile cache: " + e);
+            }
+            printCacheStats(result, cache);
+        }
+        return 0;
+    }
+
+    /**
+     * @return 读出了多少个 token，命中编译缓存时是 0
+     */
+    long getTokenCount() {
+        return tokenizer == null ? 0 : tokenizer.getTokenCount();
+    }
+
+    /**
+     * @return 报告了几个编译错误
+     */
+    int getErrorCount() {
+        return errorCount;
+    }
+
+    private static boolean endsWithEof(TokenBuffer tokens) {
+        return tokens.size() > 0 && tokens.type(tokens.size() - 1) == TokenType.EOF;
+    }
+
+    /**
+     * @return 不算最后的 EOF 有几个 token
+     */
+    private static int withoutEof(TokenBuffer tokens) {
+        return endsWithEof(tokens) ? tokens.size() - 1 : tokens.size();
+    }
+
+    /**
+     * 写到 PrintStream 时不会抛出 IOException
+     */
+    private static void finishBytecode(BytecodeWriter writer) {
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
-    private static ArgumentParser buildArgparse() {
-        var builder = ArgumentParsers.newFor("miniplc0-java");
-        var parser = builder.build();
-        parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
-        parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
-                .action(Arguments.store());
-        parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
-        return parser;
+    /**
+     * 会影响输出的选项，作为缓存的键的一部分
+     */
+    private static String cacheOptions(Options result) {
+        var sb = new StringBuilder("emit=" + result.getString("emit") + ',');
+        for (var option : List.of("tokenize", "analyse", "recover", "ast", "reuse_slots", "cse", "evaluate", "optimize")) {
+            if (result.getBoolean(option)) {
+                sb.append(option).append(',');
+            }
+        }
+        return sb.toString();
     }
 
-    private static Tokenizer tokenize(StringIter iter) {
-        var tokenizer = new Tokenizer(iter);
-        return tokenizer;
+    private void printCacheStats(Options result, CompileCache cache) {
+        if (!result.getBoolean("cache_stats")) {
+            return;
+        }
+        try {
+            stderr.println(cache.describeStats());
+        } catch (IOException e) {
+            stderr.println("Cannot read the compile cache statistics: " + e);
+        }
+    }
+
+    /**
+     * 遇到第一个错误就停下时输出这个错误，不输出结果
+     */
+    private void printError(Exception error) {
+        stderr.println(error);
+        errorCount++;
+    }
+
+    /**
+     * 把所有错误按顺序输出，不输出结果
+     */
+    private void printErrors(List<CompileError> errors) {
+        for (var error : errors) {
+            stderr.println(error);
+        }
+        errorCount += errors.size();
+        stderr.println(errors.size() + (errors.size() == 1 ? " error" : " errors"));
     }
 }
@@ -0,0 +1,248 @@
+package miniplc0java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * --batch：在一个 JVM 里并行编译很多个文件
+ *
+ * 输入是一个目录（里面所有的文件）、一个 glob（比如 tests/*.txt）或者 @清单文件，
+ * 清单里每行一个输入文件，后面可以跟一个制表符和输出文件，相对路径相对于清单所在的目录。
+ * 输出写到 -o 指定的目录下，保留相对的目录结构，扩展名换成 --suffix。
+ *
+ * 每个文件都和单独运行时一样经过 App.compile()，输出逐字节相同。一个文件出错或者崩溃不影响别的文件，
+ * 每个文件的错误信息先存起来，全部编译完以后按输入的顺序加上文件名输出，最后输出吞吐量
+ */
+final class BatchCompiler {
+    /** 一个要编译的文件 */
+    private static final class Job {
+        final Path input;
+        final Path output;
+        final String name;
+
+        int code = 1;
+        int errors = 0;
+        long tokens = 0;
+        String log = "";
+
+        Job(Path input, Path output, String name) {
+            this.input = input;
+            this.output = output;
+            this.name = name;
+        }
+    }
+
+    private final Options options;
+    private final Path cwd;
+    private final PrintStream stdout;
+    private final PrintStream stderr;
+
+    private BatchCompiler(Options options, Path cwd, PrintStream stdout, PrintStream stderr) {
+        this.options = options;
+        this.cwd = cwd;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    /**
+     * @return 所有文件的退出码中最大的一个；和单独运行时一样，编译错误不算
+     */
+    static int run(Options options, Path cwd, PrintStream stdout, PrintStream stderr) {
+        return new BatchCompiler(options, cwd, stdout, stderr).run();
+    }
+
+    private int run() {
+        var spec = options.getString("input");
+        var outputName = options.getString("output");
+        if (spec.equals("-") || outputName.equals("-")) {
+            stderr.println("In batch mode the input must be a directory, a glob or an @manifest "
+                    + "and -o must be a directory.");
+            return 3;
+        }
+        var outputDir = cwd.resolve(outputName).toAbsolutePath().normalize();
+        var suffix = options.getString("suffix");
+
+        List<Job> jobs;
+        try {
+            jobs = list(spec, outputDir, suffix);
+        } catch (IOException e) {
+            stderr.println("Cannot list the batch inputs: " + e);
+            return 2;
+        }
+        var outputs = new HashSet<Path>();
+        for (var job : jobs) {
+            if (!outputs.add(job.output)) {
+                stderr.println("More than one input is written to " + job.output + ".");
+                return 3;
+            }
+        }
+
+        var single = options.with("batch", false);
+        var tasks = new ArrayList<Callable<Job>>();
+        for (var job : jobs) {
+            tasks.add(() -> compile(job, single));
+        }
+        long start = System.nanoTime();
+        var pool = new ForkJoinPool(options.getInt("threads"));
+        try {
+            var futures = pool.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // compile() 自己接住了异常，到这里的只有 OutOfMemoryError 之类的
+                    jobs.get(i).log = e.getCause() + System.lineSeparator();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stderr.println("Batch compilation was interrupted.");
+            return 2;
+        } finally {
+            pool.shutdown();
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+        int code = 0;
+        int failed = 0;
+        long tokens = 0;
+        for (var job : jobs) {
+            for (var line : job.log.lines().collect(Collectors.toList())) {
+                stderr.println(job.name + ": " + line);
+            }
+            if (job.code != 0 || job.errors > 0) {
+                failed++;
+            }
+            code = Math.max(code, job.code);
+            tokens += job.tokens;
+        }
+        stderr.println(String.format("Compiled %d files (%d with errors) in %.3f s: %.1f files/s, %.0f tokens/s.",
+                jobs.size(), failed, seconds, jobs.size() / seconds, tokens / seconds));
+        return code;
+    }
+
+    private Job compile(Job job, Options single) {
+        var file = single.with("input", job.input.toString()).with("output", job.output.toString());
+        var log = new ByteArrayOutputStream();
+        var err = new PrintStream(log);
+        var app = new App(cwd, InputStream.nullInputStream(), stdout, err);
+        try {
+            Files.createDirectories(job.output.getParent());
+            job.code = app.compile(file);
+        } catch (IOException e) {
+            err.println("Cannot create the output directory: " + e);
+            job.code = 2;
+        } catch (RuntimeException | StackOverflowError e) {
+            // 单独运行时 JVM 会打印出来然后以 1 退出
+            e.printStackTrace(err);
+            job.code = 1;
+        } finally {
+            app.close();
+        }
+        job.errors = app.getErrorCount();
+        job.tokens = app.getTokenCount();
+        err.flush();
+        job.log = log.toString();
+        return job;
+    }
+
+    /**
+     * 列出所有要编译的文件，按路径排好序
+     */
+    private List<Job> list(String spec, Path outputDir, String suffix) throws IOException {
+        if (spec.startsWith("@")) {
+            return manifest(cwd.resolve(spec.substring(1)), outputDir, suffix);
+        }
+        int meta = firstGlobCharacter(spec);
+        Path base;
+        PathMatcher matcher;
+        if (meta >= 0) {
+            int separator = Math.max(spec.lastIndexOf('/', meta), spec.lastIndexOf('\\', meta));
+            base = cwd.resolve(spec.substring(0, separator + 1));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec.substring(separator + 1));
+        } else {
+            base = cwd.resolve(spec);
+            if (!Files.isDirectory(base)) {
+                throw new NoSuchFileException(spec, null, "not a directory, a glob or an @manifest");
+            }
+            matcher = path -> true;
+        }
+
+        List<Path> files;
+        try (var walk = Files.walk(base)) {
+            // 输出目录在输入目录里面时，不要把上一次的输出也当成输入
+            files = walk.filter(Files::isRegularFile)
+                    .filter(path -> !path.toAbsolutePath().normalize().startsWith(outputDir))
+                    .filter(path -> matcher.matches(base.relativize(path))).sorted().collect(Collectors.toList());
+        }
+        var jobs = new ArrayList<Job>();
+        for (var file : files) {
+            var relative = base.relativize(file);
+            jobs.add(new Job(file, outputDir.resolve(withSuffix(relative, suffix)), name(file)));
+        }
+        return jobs;
+    }
+
+    private List<Job> manifest(Path manifest, Path outputDir, String suffix) throws IOException {
+        var base = manifest.toAbsolutePath().getParent();
+        var jobs = new ArrayList<Job>();
+        for (var line : Files.readAllLines(manifest)) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            var fields = line.strip().split("\t", 2);
+            var input = Path.of(fields[0]);
+            Path output;
+            if (fields.length > 1) {
+                output = outputDir.resolve(fields[1].strip());
+            } else {
+                output = outputDir.resolve(withSuffix(input.isAbsolute() ? input.getFileName() : input, suffix));
+            }
+            output = output.normalize();
+            var file = base.resolve(input);
+            jobs.add(new Job(file, output, name(file)));
+        }
+        return jobs;
+    }
+
+    private static int firstGlobCharacter(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            if ("*?[{".indexOf(spec.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * a/b.txt 换成 a/b.out
+     */
+    private static Path withSuffix(Path path, String suffix) {
+        var name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return path.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + suffix);
+    }
+
+    /**
+     * 错误信息里用的文件名，在工作目录下面时用相对路径
+     */
+    private String name(Path file) {
+        var absolute = file.toAbsolutePath().normalize();
+        var root = cwd.toAbsolutePath().normalize();
+        return absolute.startsWith(root) ? root.relativize(absolute).toString() : absolute.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package miniplc0java;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+
+/**
+ * 用 argparse4j 解析完整的命令行
+ *
+ * 单独放在一个类里，Options.parseSimple() 能解析的命令行不会加载这个类，也就不会加载 argparse4j
+ */
+final class CommandLine {
+    private CommandLine() {
+    }
+
+    /**
+     * @return 解析的结果；输出了帮助或者参数有错时返回 null
+     */
+    static Options parse(String[] args, PrintStream stdout, PrintStream stderr) {
+        var argparse = buildArgparse();
+        if (Arrays.asList(args).contains("-h") || Arrays.asList(args).contains("--help")) {
+            // argparse4j 自己的帮助会直接写到 System.out
+            var writer = new PrintWriter(stdout);
+            argparse.printHelp(writer);
+            writer.flush();
+            return null;
+        }
+        try {
+            return new Options(argparse.parseArgs(args).getAttrs());
+        } catch (ArgumentParserException e) {
+            var writer = new PrintWriter(stderr);
+            argparse.handleError(e, writer);
+            writer.flush();
+            return null;
+        }
+    }
+
+    private static ArgumentParser buildArgparse() {
+        var builder = ArgumentParsers.newFor("miniplc0-java");
+        var parser = builder.build();
+        parser.epilog("Run `miniplc0-java --server [--port N]` to keep a warm compiler running, and put "
+                + "`--client [--port N]` before the usual arguments to compile on it.");
+        parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
+        parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
+        parser.addArgument("--stream").help("Read the input in a bounded window and write output as it is produced")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--recover").help("Report all errors instead of stopping at the first one (not with --stream)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--ast").help("Lift the emitted instructions into an expression tree and generate them again from it (not with --stream)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--reuse-slots").help("Let variables with disjoint lifetimes share stack slots (implies --ast)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--cse").help("Compute repeated subexpressions once (implies --ast)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-E", "--evaluate")
+                .help("Run the program at compile time and output only the printed values")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-O", "--optimize").help("Optimize the instructions (not with --stream)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--emit").help("Output format of --analyse: a text listing or compact bytecode")
+                .choices("text", "binary").action(Arguments.store());
+        parser.addArgument("-j", "--jobs").help("Tokenize large inputs on this many threads").type(Integer.class)
+                .action(Arguments.store());
+        parser.addArgument("--cache-dir").help("Reuse outputs of identical earlier compilations from this directory "
+                + "(default: $MINIPLC0_CACHE_DIR; not with --stream)").action(Arguments.store());
+        parser.addArgument("--cache-size").help("Evict old cache entries above this many MiB").type(Long.class)
+                .action(Arguments.store());
+        parser.addArgument("--cache-stats").help("Print compile cache hit/miss statistics")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--batch").help("Compile every file in the directory, glob or @manifest given as the input "
+                + "into the directory given by -o").action(Arguments.storeTrue());
+        parser.addArgument("--suffix").help("Extension of the output files in batch mode").action(Arguments.store());
+        parser.addArgument("--threads").help("Compile this many files at once in batch mode").type(Integer.class)
+                .action(Arguments.store());
+        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
+                .action(Arguments.store());
+        parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
+        // 默认值和 Options.parseSimple() 用的是同一份
+        parser.setDefaults(Options.defaults());
+        return parser;
+    }
+}
@@ -0,0 +1,94 @@
+package miniplc0java;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 解析好的命令行选项，键和 argparse4j 的 dest 一样
+ *
+ * 评测时每个用例都是一个新的 JVM，argparse4j 的类加载占了启动时间的不少一部分。
+ * 最常见的「-l/-t 输入 -o 输出」由 parseSimple() 直接解析，其他的命令行才交给 CommandLine 用 argparse4j 解析，
+ * 两边的默认值都来自 defaults()
+ */
+final class Options {
+    private final Map<String, Object> values;
+
+    Options(Map<String, Object> values) {
+        this.values = values;
+    }
+
+    /**
+     * 没有出现在命令行上的选项的值
+     */
+    static Map<String, Object> defaults() {
+        var defaults = new HashMap<String, Object>();
+        for (var flag : new String[] { "tokenize", "analyse", "stream", "recover", "ast", "reuse_slots", "cse",
+                "evaluate", "optimize", "cache_stats", "batch" }) {
+            defaults.put(flag, false);
+        }
+        defaults.put("emit", "text");
+        defaults.put("jobs", 1);
+        defaults.put("cache_dir", System.getenv("MINIPLC0_CACHE_DIR"));
+        defaults.put("cache_size", 256L);
+        defaults.put("suffix", ".out");
+        defaults.put("threads", Runtime.getRuntime().availableProcessors());
+        return defaults;
+    }
+
+    /**
+     * 只认 -t、-l、-o 和一个输入文件，其他的写法（包括缩写和合在一起的短选项）都返回 null
+     *
+     * @return 解析的结果，缺了必需的参数或者有别的选项时返回 null
+     */
+    static Options parseSimple(String[] args) {
+        var values = defaults();
+        for (int i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if (arg.equals("-t") || arg.equals("--tokenize")) {
+                values.put("tokenize", true);
+            } else if (arg.equals("-l") || arg.equals("--analyse")) {
+                values.put("analyse", true);
+            } else if ((arg.equals("-o") || arg.equals("--output")) && i + 1 < args.length
+                    && (args[i + 1].equals("-") || !args[i + 1].startsWith("-"))) {
+                values.put("output", args[++i]);
+            } else if (arg.equals("-") || !arg.startsWith("-")) {
+                if (values.containsKey("input")) {
+                    return null;
+                }
+                values.put("input", arg);
+            } else {
+                return null;
+            }
+        }
+        if (!values.containsKey("input") || !values.containsKey("output")) {
+            return null;
+        }
+        return new Options(values);
+    }
+
+    /**
+     * @return 改了一个选项的副本
+     */
+    Options with(String key, Object value) {
+        var copy = new HashMap<>(values);
+        copy.put(key, value);
+        return new Options(copy);
+    }
+
+    boolean getBoolean(String key) {
+        return (Boolean) values.get(key);
+    }
+
+    String getString(String key) {
+        var value = values.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    int getInt(String key) {
+        return (Integer) values.get(key);
+    }
+
+    long getLong(String key) {
+        return (Long) values.get(key);
+    }
+}
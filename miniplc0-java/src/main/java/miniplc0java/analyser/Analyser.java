@@ -7,12 +7,12 @@ import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.Instruction;
 import miniplc0java.instruction.Operation;
-import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
-import miniplc0java.util.Pos;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 import static miniplc0java.error.ErrorCode.DuplicateDeclaration;
 
@@ -21,20 +21,84 @@ public final class Analyser {
     Tokenizer tokenizer;
     ArrayList<Instruction> instructions;
 
-    /** 当前偷看的 token */
-    Token peekedToken = null;
+    /** 生成的指令交给谁，默认存进 instructions */
+    Consumer<Instruction> sink;
+
+    /** 一次从 tokenizer 读取多少个 token */
+    private static final int BATCH_SIZE = 256;
+
+    /** 已经读进来的一批 token，cursor 是下一个要读的下标 */
+    TokenBuffer tokens = new TokenBuffer(BATCH_SIZE);
+    int cursor = 0;
 
     /** 符号表 */
-    HashMap<String, SymbolEntry> symbolTable = new HashMap<>();
+    SymbolTable symbolTable = new SymbolTable();
 
     /** 下一个变量的栈偏移 */
     int nextOffset = 0;
 
+    /** 分析到了哪一部分，增量编译从检查点恢复时使用 */
+    static final int PHASE_PROGRAM = 0;
+    static final int PHASE_CONST = 1;
+    static final int PHASE_VAR = 2;
+    static final int PHASE_STATEMENT = 3;
+
+    /**
+     * 增量编译用的钩子
+     */
+    interface Listener {
+        /**
+         * 开始分析 phase 部分的下一条声明或语句之前调用，此时 cursor 指向它的第一个 token
+         */
+        void checkpoint(int phase);
+
+        /**
+         * 符号表里加入了一个符号
+         */
+        void symbolAdded(int nameId, int symbol);
+
+        /**
+         * 一个符号被设置为已赋值
+         */
+        void symbolInitialized(int nameId);
+    }
+
+    /** 平时为 null */
+    Listener listener;
+
+    /** 恢复模式下收集到的错误，不在恢复模式时为 null */
+    List<CompileError> diagnostics;
+
 //    int PrintFlag = 0;
 
     public Analyser(Tokenizer tokenizer) {
         this.tokenizer = tokenizer;
         this.instructions = new ArrayList<>();
+        this.sink = instructions::add;
+    }
+
+    /**
+     * 边分析边把指令交给 sink，不在内存里保留整个指令序列
+     *
+     * @param tokenizer
+     * @param sink      每生成一条指令就调用一次
+     */
+    public Analyser(Tokenizer tokenizer, Consumer<Instruction> sink) {
+        this.tokenizer = tokenizer;
+        this.instructions = new ArrayList<>();
+        this.sink = sink;
+    }
+
+    /**
+     * 直接分析一个已经读完的 token 序列，最后一个 token 必须是 EOF
+     *
+     * @param tokens
+     * @param sink
+     */
+    Analyser(TokenBuffer tokens, Consumer<Instruction> sink) {
+        this.tokens = tokens;
+        this.instructions = new ArrayList<>();
+        this.sink = sink;
     }
 
     public List<Instruction> analyse() throws CompileError {
@@ -43,32 +107,145 @@ public final class Analyser {
     }
 
     /**
-     * 查看下一个 Token
+     * 恢复模式：出错以后不停下来，把所有的错误都收集起来
+     *
+     * 出错的 token 直接跳过；声明和语句中出错时跳到下一个 ';' 或者 'end' 接着分析
+     *
+     * @return 按位置排好序的所有错误，为空时指令序列和 analyse() 的结果一样
+     */
+    public List<CompileError> analyseAll() {
+        diagnostics = new ArrayList<>();
+        try {
+            analyseProgram();
+        } catch (CompileError e) {
+            // 恢复模式下不会走到这里
+            diagnostics.add(e);
+        }
+        diagnostics.sort(Comparator.comparingInt((CompileError e) -> e.getPos().row)
+                .thenComparingInt(e -> e.getPos().col));
+        return diagnostics;
+    }
+
+    /**
+     * @return 生成的指令序列（只有没有指定 sink 时才有内容）
+     */
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * 记录一个错误，不在恢复模式时直接抛出
+     *
+     * @param e
+     * @throws CompileError
+     */
+    private void report(CompileError e) throws CompileError {
+        if (diagnostics == null) {
+            throw e;
+        }
+        diagnostics.add(e);
+    }
+
+    /**
+     * 记录一个错误，然后跳到下一个 ';' 之后或者 'end' 之前
+     *
+     * @param e
+     * @throws CompileError 不在恢复模式时直接抛出
+     */
+    private void recover(CompileError e) throws CompileError {
+        report(e);
+        synchronize();
+    }
+
+    private void synchronize() throws CompileError {
+        while (!check(TokenType.Semicolon) && !check(TokenType.End) && !check(TokenType.EOF)) {
+            next();
+        }
+        nextIf(TokenType.Semicolon);
+    }
+
+    /**
+     * 从 cursor 处接着分析，符号表和 nextOffset 要先恢复成那里的状态
+     *
+     * @param phase 检查点所在的部分
+     * @throws CompileError
+     */
+    void resume(int phase) throws CompileError {
+        if (phase == PHASE_PROGRAM) {
+            analyseProgram();
+            return;
+        }
+        if (phase <= PHASE_CONST) {
+            analyseConstantDeclaration();
+        }
+        if (phase <= PHASE_VAR) {
+            analyseVariableDeclaration();
+        }
+        analyseStatementSequence();
+        analyseEnd();
+    }
+
+    private void checkpoint(int phase) {
+        if (listener != null) {
+            listener.checkpoint(phase);
+        }
+    }
+
+    /**
+     * 生成一条指令
+     *
+     * @param instruction
+     */
+    private void emit(Instruction instruction) {
+        sink.accept(instruction);
+    }
+
+    /**
+     * 当前这批 token 读完了就再读一批
+     *
+     * 重新读取以后之前拿到的下标就失效了，所以调用者要在偷看下一个 token 之前用完手里的下标
+     *
+     * @throws TokenizeError
+     */
+    private void fill() throws TokenizeError {
+        if (cursor == tokens.size() && tokenizer != null) {
+            tokens.clear();
+            cursor = 0;
+            while (true) {
+                try {
+                    tokenizer.nextTokens(tokens, BATCH_SIZE);
+                    return;
+                } catch (TokenizeError e) {
+                    if (diagnostics == null) {
+                        throw e;
+                    }
+                    // 出错的字符已经被跳过了，就当没有这个 token
+                    diagnostics.add(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 查看下一个 Token 的类型
      * 
      * @return
      * @throws TokenizeError
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
-        }
-        return peekedToken;
+    private TokenType peek() throws TokenizeError {
+        fill();
+        return tokens.type(cursor);
     }
 
     /**
      * 获取下一个 Token
      * 
-     * @return
+     * @return 这个 token 在 tokens 中的下标
      * @throws TokenizeError
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() throws TokenizeError {
+        fill();
+        return cursor++;
     }
 
     /**
@@ -79,23 +256,22 @@ public final class Analyser {
      * @throws TokenizeError
      */
     private boolean check(TokenType tt) throws TokenizeError {
-        var token = peek();
-        return token.getTokenType() == tt;
+        return peek() == tt;
     }
 
     /**
-     * 如果下一个 token 的类型是 tt，则前进一个 token 并返回这个 token
+     * 如果下一个 token 的类型是 tt，则前进一个 token
      * 
      * @param tt 类型
-     * @return 如果匹配则返回这个 token，否则返回 null
+     * @return 是否匹配
      * @throws TokenizeError
      */
-    private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
-            return next();
+    private boolean nextIf(TokenType tt) throws TokenizeError {
+        if (peek() == tt) {
+            cursor++;
+            return true;
         } else {
-            return null;
+            return false;
         }
     }
 
@@ -103,18 +279,24 @@ public final class Analyser {
      * 如果下一个 token 的类型是 tt，则前进一个 token 并返回，否则抛出异常
      * 
      * @param tt 类型
-     * @return 这个 token
+     * @return 这个 token 在 tokens 中的下标
      * @throws CompileError 如果类型不匹配
      */
-    private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
-            return next();
+    private int expect(TokenType tt) throws CompileError {
+        if (peek() == tt) {
+            return cursor++;
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, tokens.toToken(cursor));
         }
     }
 
+    /**
+     * 构造一个位于 offset 处的语义错误
+     */
+    private AnalyzeError error(ErrorCode code, int offset) {
+        return new AnalyzeError(code, offset, tokens.getLineIndex());
+    }
+
     /**
      * 获取下一个变量的栈偏移
      * 
@@ -124,70 +306,52 @@ public final class Analyser {
         return this.nextOffset++;
     }
 
+    /**
+     * 按编号查找符号，一次拿到是否常量、是否已赋值和栈偏移
+     *
+     * @param nameId 标识符的编号
+     * @param offset 当前 token 的位置（报错用）
+     * @return 压缩后的符号，用 SymbolTable 的静态方法取出各项
+     * @throws AnalyzeError 如果未定义则抛异常
+     */
+    private int resolve(int nameId, int offset) throws AnalyzeError {
+        int symbol = symbolTable.resolve(nameId);
+        if (symbol == SymbolTable.ABSENT) {
+            throw error(ErrorCode.NotDeclared, offset);
+        }
+        return symbol;
+    }
+
     /**
      * 添加一个符号
      * 
-     * @param name          名字
+     * @param nameId        标识符的编号
      * @param isInitialized 是否已赋值
      * @param isConstant    是否是常量
-     * @param curPos        当前 token 的位置（报错用）
+     * @param offset        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
-    private void addSymbol(String name, boolean isInitialized, boolean isConstant, Pos curPos) throws AnalyzeError {
-        if (this.symbolTable.get(name) != null) {
-            throw new AnalyzeError(DuplicateDeclaration, curPos);
+    private void addSymbol(int nameId, boolean isInitialized, boolean isConstant, int offset) throws AnalyzeError {
+        if (symbolTable.resolve(nameId) != SymbolTable.ABSENT) {
+            throw error(DuplicateDeclaration, offset);
         } else {
-            this.symbolTable.put(name, new SymbolEntry(isConstant, isInitialized, getNextVariableOffset()));
+            int symbol = SymbolTable.pack(isConstant, isInitialized, getNextVariableOffset());
+            symbolTable.put(nameId, symbol);
+            if (listener != null) {
+                listener.symbolAdded(nameId, symbol);
+            }
         }
     }
 
     /**
      * 设置符号为已赋值
      * 
-     * @param name   符号名称
-     * @param curPos 当前位置（报错用）
-     * @throws AnalyzeError 如果未定义则抛异常
+     * @param nameId 标识符的编号
      */
-    private void declareSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            entry.setInitialized(true);
-        }
-    }
-
-    /**
-     * 获取变量在栈上的偏移
-     * 
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 栈偏移
-     * @throws AnalyzeError
-     */
-    private int getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            return entry.getStackOffset();
-        }
-    }
-
-    /**
-     * 获取变量是否是常量
-     * 
-     * @param name   符号名
-     * @param curPos 当前位置（报错用）
-     * @return 是否为常量
-     * @throws AnalyzeError
-     */
-    private boolean isConstant(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
-        } else {
-            return entry.isConstant();
+    private void declareSymbol(int nameId) {
+        symbolTable.setInitialized(nameId, true);
+        if (listener != null) {
+            listener.symbolInitialized(nameId);
         }
     }
 
@@ -197,13 +361,44 @@ public final class Analyser {
     private void analyseProgram() throws CompileError {
         // 示例函数，示例如何调用子程序
         // 'begin'
-        expect(TokenType.Begin);
+        try {
+            expect(TokenType.Begin);
+        } catch (CompileError e) {
+            // 当作有 begin 接着往下分析
+            report(e);
+        }
 
         analyseMain();
 
         // 'end'
-        expect(TokenType.End);
-        expect(TokenType.EOF);
+        analyseEnd();
+    }
+
+    /**
+     * 'end' 和输入的结尾
+     *
+     * 恢复模式下，语句序列后面不是 end 的话报错并跳过，然后接着分析语句
+     * @throws CompileError
+     */
+    private void analyseEnd() throws CompileError {
+        while (true) {
+            try {
+                expect(TokenType.End);
+                break;
+            } catch (CompileError e) {
+                report(e);
+                if (check(TokenType.EOF)) {
+                    break;
+                }
+                synchronize();
+                analyseStatementSequence();
+            }
+        }
+        try {
+            expect(TokenType.EOF);
+        } catch (CompileError e) {
+            report(e);
+        }
     }
 
     /**
@@ -234,63 +429,95 @@ public final class Analyser {
     private void analyseConstantDeclaration() throws CompileError {
         // 示例函数，示例如何解析常量声明
         // 如果下一个 token 是 const 就继续
-        while (nextIf(TokenType.Const) != null) {
-            // 变量名 (即文法中所说的标识符)
-            var nameToken = expect(TokenType.Ident);
-
-            //如果已经声明过这个常量
-            if (symbolTable.containsKey(nameToken.getValue())) {
-                throw new AnalyzeError(DuplicateDeclaration, nameToken.getStartPos());
+        checkpoint(PHASE_CONST);
+        while (nextIf(TokenType.Const)) {
+            try {
+                analyseConstantDeclarationStatement();
+            } catch (CompileError e) {
+                recover(e);
             }
-            // 等于号
-            expect(TokenType.Equal);
+            checkpoint(PHASE_CONST);
+        }
+    }
 
-            // 常表达式 并且返回这个整数值
-            int valForStack = analyseConstantExpression();
+    /**
+     * <常量声明语句> ::= 'const'<标识符>'='<常表达式>';'
+     *
+     * 'const' 已经读过了
+     * @throws CompileError
+     */
+    private void analyseConstantDeclarationStatement() throws CompileError {
+        // 变量名 (即文法中所说的标识符)
+        int nameToken = expect(TokenType.Ident);
+        int nameId = tokens.value(nameToken);
+        int namePos = tokens.start(nameToken);
+
+        //如果已经声明过这个常量
+        if (symbolTable.resolve(nameId) != SymbolTable.ABSENT) {
+            throw error(DuplicateDeclaration, namePos);
+        }
+        // 等于号
+        expect(TokenType.Equal);
 
-            // 分号
-            expect(TokenType.Semicolon);
+        // 常表达式 并且返回这个整数值
+        int valForStack = analyseConstantExpression();
+
+        // 分号
+        expect(TokenType.Semicolon);
 
-            //添加符号到符号表内
-            addSymbol(String.valueOf(nameToken.getValue()), true, true, nameToken.getStartPos());
+        //添加符号到符号表内
+        addSymbol(nameId, true, true, namePos);
 
-            instructions.add(new Instruction(Operation.LIT, valForStack));
-        }
+        emit(new Instruction(Operation.LIT, valForStack));
     }
 
     /**
      * 变量声明
      * <变量声明> ::= {<变量声明语句>}
-     * <变量声明语句> ::= 'var'<标识符>['='<表达式>]';'
      * @throws CompileError
      */
     private void analyseVariableDeclaration() throws CompileError {
-        while (nextIf(TokenType.Var) != null) {
-            // 变量名 (即文法中所说的标识符)
-            var nameToken = expect(TokenType.Ident);
-            //如果这是第二次声明该变量
-            if (symbolTable.containsKey(nameToken.getValue())) {
-                throw new AnalyzeError(DuplicateDeclaration, nameToken.getStartPos());
-            }
-            //处理可选项
-            // ['='<表达式>]';'
-            if (nextIf(TokenType.Equal) != null) {
-                //表达式
-                analyseExpression();
-                //分号
-                expect(TokenType.Semicolon);
-                addSymbol(String.valueOf(nameToken.getValue()), true, false, nameToken.getStartPos());
-                continue;
+        checkpoint(PHASE_VAR);
+        while (nextIf(TokenType.Var)) {
+            try {
+                analyseVariableDeclarationStatement();
+            } catch (CompileError e) {
+                recover(e);
             }
+            checkpoint(PHASE_VAR);
+        }
+        //throw new Error("Not implemented");
+    }
+
+    /**
+     * <变量声明语句> ::= 'var'<标识符>['='<表达式>]';'
+     *
+     * 'var' 已经读过了
+     * @throws CompileError
+     */
+    private void analyseVariableDeclarationStatement() throws CompileError {
+        // 变量名 (即文法中所说的标识符)
+        int nameToken = expect(TokenType.Ident);
+        int nameId = tokens.value(nameToken);
+        int namePos = tokens.start(nameToken);
+        //如果这是第二次声明该变量
+        if (symbolTable.resolve(nameId) != SymbolTable.ABSENT) {
+            throw error(DuplicateDeclaration, namePos);
+        }
+        //处理可选项
+        // ['='<表达式>]';'
+        if (nextIf(TokenType.Equal)) {
+            //表达式
+            analyseExpression();
             //分号
             expect(TokenType.Semicolon);
-
-            addSymbol(String.valueOf(nameToken.getValue()), false, false, nameToken.getStartPos());
-
-
-
+            addSymbol(nameId, true, false, namePos);
+            return;
         }
-        //throw new Error("Not implemented");
+        //分号
+        expect(TokenType.Semicolon);
+
+        addSymbol(nameId, false, false, namePos);
     }
 
     /**
@@ -299,8 +526,14 @@ public final class Analyser {
      * @throws CompileError
      */
     private void analyseStatementSequence() throws CompileError {
+        checkpoint(PHASE_STATEMENT);
         while (check(TokenType.Ident) || check(TokenType.Print) || check(TokenType.Semicolon)) {
-            analyseStatement();
+            try {
+                analyseStatement();
+            } catch (CompileError e) {
+                recover(e);
+            }
+            checkpoint(PHASE_STATEMENT);
         }
         //throw new Error("Not implemented");
     }
@@ -318,7 +551,7 @@ public final class Analyser {
         } else if (check(TokenType.Semicolon)) {
             next();
         } else {
-            throw new AnalyzeError(ErrorCode.InvalidInput, next().getStartPos());
+            throw error(ErrorCode.InvalidInput, tokens.start(next()));
         }
         //throw new Error("Not implemented");
     }
@@ -330,38 +563,132 @@ public final class Analyser {
     private int analyseConstantExpression() throws CompileError {
         int sign = 1;
         //可选项 符号
-        if (nextIf(TokenType.Minus) != null) {
+        if (nextIf(TokenType.Minus)) {
             sign = -1;
-        } else if (nextIf(TokenType.Plus) != null){
+        } else if (nextIf(TokenType.Plus)){
             sign = 1;
         }
 
         //无符号整数
-        var tokenVal = expect(TokenType.Uint);
+        int tokenVal = expect(TokenType.Uint);
 
-        return sign * Integer.parseInt(String.valueOf(tokenVal.getValue()));
+        return sign * tokens.value(tokenVal);
         //throw new Error("Not implemented");
     }
 
+    /** 表达式中等着右操作数算完再输出的运算 */
+    private static final int OP_NONE = 0;
+    private static final int OP_ADD = 1;
+    private static final int OP_SUB = 2;
+    private static final int OP_MUL = 3;
+    private static final int OP_DIV = 4;
+
+    /**
+     * 分析表达式时每进入一层括号保存一帧：外层等着输出的加法型运算、乘法型运算，
+     * 以及这个括号因子前面有没有负号，压成一个 int
+     */
+    private int[] expressionFrames = new int[16];
+
     /**
      * 表达式
      * <表达式> ::= <项>{<加法型运算符><项>}
+     * <项> ::= <因子>{<乘法型运算符><因子>}
+     * <因子> ::= [<符号>]( <标识符> | <无符号整数> | '('<表达式>')' )
+     *
+     * 不递归，括号的嵌套保存在 expressionFrames 里，嵌套再深也不会栈溢出。
+     * 读 token、生成指令和报错的顺序都和按文法逐层递归时一样：运算左结合，在右操作数之后输出；
+     * 负号先输出 LIT 0，整个因子结束后再输出 SUB
      * @throws CompileError
      */
     private void analyseExpression() throws CompileError {
-        //项
-        analyseItem();
-
-        while (check(TokenType.Minus) || check(TokenType.Plus)) {
-            Token token = next();
-            analyseItem();
-            if (token.getTokenType() == TokenType.Minus) {
-                instructions.add(new Instruction(Operation.SUB));
-            } else if (token.getTokenType() == TokenType.Plus) {
-                instructions.add(new Instruction(Operation.ADD));
+        int depth = 0;
+        int pendingAdd = OP_NONE;
+        int pendingMul = OP_NONE;
+        while (true) {
+            // 因子的开头
+            boolean negate;
+            if (nextIf(TokenType.Minus)) {
+                negate = true;
+                // 计算结果需要被 0 减
+                emit(new Instruction(Operation.LIT, 0));
+            } else {
+                nextIf(TokenType.Plus);
+                negate = false;
+            }
+
+            if (check(TokenType.Ident)) {
+                int nameToken = next();
+                int nameId = tokens.value(nameToken);
+                int namePos = tokens.start(nameToken);
+                //如果该变量未声明过
+                int symbol = resolve(nameId, namePos);
+                if (!SymbolTable.isInitialized(symbol)) {
+                    throw error(ErrorCode.NotInitialized, namePos);
+                }
+                emit(new Instruction(Operation.LOD, SymbolTable.stackOffset(symbol)));
+            } else if (check(TokenType.Uint)) {
+                emit(new Instruction(Operation.LIT, tokens.value(next())));
+            } else if (check(TokenType.LParen)) {
+                // 进入括号，外层的状态先存起来
+                next();
+                if (depth == expressionFrames.length) {
+                    expressionFrames = Arrays.copyOf(expressionFrames, depth * 2);
+                }
+                expressionFrames[depth++] = pendingAdd | pendingMul << 3 | (negate ? 1 << 6 : 0);
+                pendingAdd = OP_NONE;
+                pendingMul = OP_NONE;
+                continue;
+            } else {
+                // 都不是，摸了
+                throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), tokens.toToken(next()));
+            }
+
+            // 因子结束，可能一连结束好几层括号
+            while (true) {
+                if (negate) {
+                    emit(new Instruction(Operation.SUB));
+                }
+                if (pendingMul != OP_NONE) {
+                    emit(new Instruction(operation(pendingMul)));
+                    pendingMul = OP_NONE;
+                }
+                if (check(TokenType.Mult) || check(TokenType.Div)) {
+                    pendingMul = tokens.type(next()) == TokenType.Mult ? OP_MUL : OP_DIV;
+                    break;
+                }
+                // 项结束
+                if (pendingAdd != OP_NONE) {
+                    emit(new Instruction(operation(pendingAdd)));
+                    pendingAdd = OP_NONE;
+                }
+                if (check(TokenType.Minus) || check(TokenType.Plus)) {
+                    pendingAdd = tokens.type(next()) == TokenType.Plus ? OP_ADD : OP_SUB;
+                    break;
+                }
+                // 表达式结束
+                if (depth == 0) {
+                    return;
+                }
+                expect(TokenType.RParen);
+                int frame = expressionFrames[--depth];
+                pendingAdd = frame & 7;
+                pendingMul = frame >> 3 & 7;
+                negate = (frame & 1 << 6) != 0;
             }
         }
-        //throw new Error("Not implemented");
+    }
+
+    private static Operation operation(int op) {
+        switch (op) {
+            case OP_ADD:
+                return Operation.ADD;
+            case OP_SUB:
+                return Operation.SUB;
+            case OP_MUL:
+                return Operation.MUL;
+            default:
+                return Operation.DIV;
+        }
     }
 
     /**
@@ -371,13 +698,14 @@ public final class Analyser {
      */
     private void analyseAssignmentStatement() throws CompileError {
         //标识符
-        var nameToken = expect(TokenType.Ident);
+        int nameToken = expect(TokenType.Ident);
+        int nameId = tokens.value(nameToken);
+        int namePos = tokens.start(nameToken);
 
         //如果没有这个变量 或者 这个变量是一个常量的话 抛异常
-        if ( ! symbolTable.containsKey(nameToken.getValue())) {
-            throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getStartPos());
-        } else if (isConstant(String.valueOf(nameToken.getValue()), nameToken.getStartPos())) {
-            throw new AnalyzeError(ErrorCode.AssignToConstant ,nameToken.getStartPos());
+        int symbol = resolve(nameId, namePos);
+        if (SymbolTable.isConstant(symbol)) {
+            throw error(ErrorCode.AssignToConstant, namePos);
         }
         //等号
         expect(TokenType.Equal);
@@ -388,14 +716,15 @@ public final class Analyser {
         //分号
         expect(TokenType.Semicolon);
 
-        if (symbolTable.get(nameToken.getValue()).isInitialized) {
-            instructions.add(new Instruction(Operation.STO, getOffset((String)nameToken.getValue(), nameToken.getStartPos())));
+        // 表达式里不会改变符号表，symbol 仍然有效
+        if (SymbolTable.isInitialized(symbol)) {
+            emit(new Instruction(Operation.STO, SymbolTable.stackOffset(symbol)));
         } else {
-            declareSymbol(String.valueOf(nameToken.getValue()), nameToken.getStartPos());
+            declareSymbol(nameId);
         }
-//        declareSymbol(String.valueOf(nameToken.getValue()), nameToken.getStartPos());
+//        declareSymbol(String.valueOf(nameToken.getValue()), nameToken);
 //        int offsetForStack = symbolTable.get(nameToken).stackOffset;
-//        instructions.add(new Instruction(Operation.STO, offsetForStack));
+//        emit(new Instruction(Operation.STO, offsetForStack));
         //throw new Error("Not implemented");
     }
 
@@ -414,79 +743,6 @@ public final class Analyser {
         //PrintFlag = 0;
         expect(TokenType.RParen);
         expect(TokenType.Semicolon);
-        instructions.add(new Instruction(Operation.WRT));
-    }
-
-    /**
-     * 项
-     * <项> ::= <因子>{<乘法型运算符><因子>}
-     * @throws CompileError
-     */
-    private void analyseItem() throws CompileError {
-        analyseFactor();
-        while (check(TokenType.Mult) || check(TokenType.Div)) {
-            Token token = next();
-            analyseFactor();
-            if (token.getTokenType() == TokenType.Mult) {
-                instructions.add(new Instruction(Operation.MUL));
-            } else if (token.getTokenType() == TokenType.Div) {
-                instructions.add(new Instruction(Operation.DIV));
-            }
-        }
-        //throw new Error("Not implemented");
-    }
-
-    /**
-     * 因子
-     * <因子> ::= [<符号>]( <标识符> | <无符号整数> | '('<表达式>')' )
-     * @throws CompileError
-     */
-    private void analyseFactor() throws CompileError {
-        boolean negate;
-        if (nextIf(TokenType.Minus) != null) {
-            negate = true;
-            // 计算结果需要被 0 减
-            instructions.add(new Instruction(Operation.LIT, 0));
-        } else {
-            nextIf(TokenType.Plus);
-            negate = false;
-        }
-
-        if (check(TokenType.Ident)) {
-            // 调用相应的处理函数
-            var nameToken = next();
-            //如果该变量未声明过
-            if (!symbolTable.containsKey(nameToken.getValue())) {
-                throw new AnalyzeError(ErrorCode.NotDeclared, nameToken.getStartPos());
-            } else if (!symbolTable.get(nameToken.getValue()).isInitialized()) {
-                throw new AnalyzeError(ErrorCode.NotInitialized, nameToken.getStartPos());
-            }
-            int offsetForStack = getOffset((String)nameToken.getValue(), nameToken.getStartPos());
-//            if (PrintFlag == 0) {
-//                instructions.add(new Instruction(Operation.LOD, offsetForStack));
-//            }
-            instructions.add(new Instruction(Operation.LOD, offsetForStack));
-            //int alpha = ;
-            //INteruction.add(lit, alpha.value)
-        } else if (check(TokenType.Uint)) {
-            // 调用相应的处理函数
-            var nameToken = next();
-            int valForStack = (Integer) nameToken.getValue();
-            instructions.add(new Instruction(Operation.LIT, valForStack));
-            //int beta = xx;
-        } else if (check(TokenType.LParen)) {
-            // 调用相应的处理函数
-            expect(TokenType.LParen);
-            analyseExpression();
-            expect(TokenType.RParen);
-        } else {
-            // 都不是，摸了
-            throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), next());
-        }
-
-        if (negate) {
-            instructions.add(new Instruction(Operation.SUB));
-        }
-        //throw new Error("Not implemented");
+        emit(new Instruction(Operation.WRT));
     }
 }
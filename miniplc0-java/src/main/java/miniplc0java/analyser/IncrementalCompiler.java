@@ -0,0 +1,563 @@
+package miniplc0java.analyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import miniplc0java.error.CompileError;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.NameTable;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 增量编译：保留上一次的 token 序列、指令序列和每条声明/语句之前的检查点，
+ * 修改一段输入以后只重新分析受影响的部分
+ *
+ * 词法分析从改动处的第一个 token 开始，直到新的 token 重新和旧的对齐为止；
+ * 语法分析从第一条 token 发生了变化的语句开始，恢复那里的符号表和栈偏移，
+ * 在改动之后的某个检查点上如果状态又和原来一样，就直接沿用原来后面的指令。
+ *
+ * 输入含有非 ASCII 字节，或者有词法错误的时候，每次修改都从头编译
+ */
+public class IncrementalCompiler {
+    /** 重新做词法分析时一次读取多少个 token */
+    private static final int RELEX_BATCH = 64;
+
+    /** 比较符号表状态时最多看多少条修改记录，再多就不沿用了 */
+    private static final int MAX_COMPARED_CHANGES = 256;
+
+    private byte[] source;
+    private int length;
+    private int nonAsciiBytes = 0;
+
+    private final NameTable names = new NameTable();
+    private final TokenBuffer tokens = new TokenBuffer();
+    private final ArrayList<Instruction> instructions = new ArrayList<>();
+    private Analyser analyser;
+
+    /** 每条声明/语句之前的状态，第 0 个总是程序的开头 */
+    private Checkpoints checkpoints = new Checkpoints();
+
+    /** 符号表的修改记录，检查点记下的是当时的记录条数 */
+    private SymbolLog log = new SymbolLog();
+
+    /** 上一次编译的错误 */
+    private CompileError error;
+
+    /** 上一次的结果能不能用来增量编译 */
+    private boolean valid = false;
+
+    // 上一次修改重新分析了多少个 token 和多少条声明/语句
+    private int relexed = 0;
+    private int reanalysed = 0;
+
+    // 重新分析的过程中用到的状态
+    private int resumeFrom;
+    private int syncToken;
+    private int tokenDelta;
+    private int nextOld;
+    private Checkpoints newCheckpoints;
+    private SymbolLog newLog;
+    private ArrayList<Instruction> newInstructions;
+
+    /**
+     * @param source 输入，之后由这个对象持有
+     * @param length 输入的字节数
+     */
+    public IncrementalCompiler(byte[] source, int length) {
+        this.source = source;
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            if (source[i] < 0) {
+                nonAsciiBytes++;
+            }
+        }
+    }
+
+    /**
+     * 从头编译一次
+     *
+     * @return 指令序列
+     * @throws CompileError
+     */
+    public List<Instruction> compile() throws CompileError {
+        return rebuild();
+    }
+
+    /**
+     * 把输入的 [start, end) 换成 replacement，然后重新编译
+     *
+     * @param start       改动的起始字节
+     * @param end         改动的结束字节（不含）
+     * @param replacement 新的内容
+     * @return 新的指令序列
+     * @throws CompileError
+     */
+    public List<Instruction> edit(int start, int end, byte[] replacement) throws CompileError {
+        Objects.checkFromToIndex(start, end, length);
+        for (int i = start; i < end; i++) {
+            if (source[i] < 0) {
+                nonAsciiBytes--;
+            }
+        }
+        for (byte b : replacement) {
+            if (b < 0) {
+                nonAsciiBytes++;
+            }
+        }
+        int delta = replacement.length - (end - start);
+        if (length + delta > source.length) {
+            source = Arrays.copyOf(source, Math.max(length + delta, source.length * 2));
+        }
+        System.arraycopy(source, end, source, end + delta, length - end);
+        System.arraycopy(replacement, 0, source, start, replacement.length);
+        length += delta;
+
+        if (!valid || nonAsciiBytes > 0) {
+            return rebuild();
+        }
+
+        // 从改动处的第一个 token（可能和改动的内容连在一起）开始重新分析，直到和原来的 token 对齐
+        int first = firstTokenEndingAt(start);
+        int from = Math.min(tokens.start(first), start);
+        int editEnd = start + replacement.length;
+        var lexer = new Tokenizer(source, length, names, from);
+        var fresh = new TokenBuffer(RELEX_BATCH);
+        int old = first;
+        int count = -1;
+        try {
+            while (count < 0) {
+                int before = fresh.size();
+                lexer.nextTokens(fresh, RELEX_BATCH);
+                for (int k = before; k < fresh.size() && count < 0; k++) {
+                    int s = fresh.start(k);
+                    if (s < editEnd) {
+                        continue;
+                    }
+                    // 改动之后输入是一样的，从同一个位置开始的 token 也一样，EOF 一定能对上
+                    while (tokens.start(old) < s - delta) {
+                        old++;
+                    }
+                    if (tokens.start(old) == s - delta) {
+                        count = k;
+                    }
+                }
+            }
+        } catch (TokenizeError e) {
+            return rebuild();
+        }
+        tokens.splice(first, old, fresh, 0, count, delta);
+        relexed = count;
+
+        int c = checkpoints.resumePoint(first);
+        return reanalyse(c, first + count, count - (old - first));
+    }
+
+    /**
+     * @return 当前的输入
+     */
+    public byte[] getSource() {
+        return Arrays.copyOf(source, length);
+    }
+
+    /**
+     * @return 上一次修改重新做了词法分析的 token 数
+     */
+    public int getRelexedTokens() {
+        return relexed;
+    }
+
+    /**
+     * @return 上一次编译重新分析了多少条声明和语句
+     */
+    public int getReanalysedStatements() {
+        return reanalysed;
+    }
+
+    /**
+     * 找第一个结束位置不小于 offset 的 token
+     */
+    private int firstTokenEndingAt(int offset) {
+        int lo = 0;
+        int hi = tokens.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens.end(mid) < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private List<Instruction> rebuild() throws CompileError {
+        valid = false;
+        tokens.clear();
+        instructions.clear();
+        try {
+            var tokenizer = new Tokenizer(source, length, names, 0);
+            while (tokens.size() == 0 || tokens.type(tokens.size() - 1) != TokenType.EOF) {
+                tokenizer.nextTokens(tokens, 4096);
+            }
+        } catch (TokenizeError e) {
+            // 词法错误不一定是第一个错误，交给普通的编译过程决定报哪一个
+            return new Analyser(new Tokenizer(source, length)).analyse();
+        }
+
+        relexed = tokens.size();
+        analyser = new Analyser(tokens, instruction -> newInstructions.add(instruction));
+        analyser.listener = new Recorder();
+        checkpoints = new Checkpoints();
+        checkpoints.add(0, 0, 0, 0, Analyser.PHASE_PROGRAM);
+        log = new SymbolLog();
+        error = null;
+        valid = nonAsciiBytes == 0;
+        return reanalyse(0, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * 从第 c 个检查点开始重新分析
+     *
+     * @param c          从哪个检查点开始
+     * @param syncToken  从这个 token 开始和原来的一样，之后的检查点上可以试着沿用原来的结果
+     * @param tokenDelta 从 syncToken 开始 token 的下标比原来多了多少
+     */
+    private List<Instruction> reanalyse(int c, int syncToken, int tokenDelta) throws CompileError {
+        // 原来的结果是错误的时候，错误的位置没法直接挪，就分析到底
+        this.syncToken = error == null ? syncToken : Integer.MAX_VALUE;
+        this.tokenDelta = tokenDelta;
+        this.resumeFrom = c;
+        this.nextOld = c + 1;
+        this.newCheckpoints = new Checkpoints();
+        this.newLog = new SymbolLog();
+        this.newInstructions = new ArrayList<>();
+
+        // 恢复第 c 个检查点时的状态
+        log.undo(analyser, checkpoints.log[c], log.count);
+        analyser.nextOffset = checkpoints.offset[c];
+        analyser.cursor = checkpoints.token[c];
+
+        int converged = -1;
+        CompileError failure = null;
+        try {
+            analyser.resume(checkpoints.phase[c]);
+        } catch (Converged e) {
+            converged = nextOld;
+        } catch (CompileError e) {
+            failure = e;
+        }
+        // 恢复的那一条加上之后记下检查点的每一条
+        reanalysed = newCheckpoints.count + 1;
+
+        int instrFrom = checkpoints.instr[c];
+        int logFrom = checkpoints.log[c];
+        if (converged >= 0) {
+            // 后面的状态和原来一样，接上原来的指令，重做原来后面的符号表修改
+            int m = converged;
+            int instrTo = checkpoints.instr[m];
+            int logTo = checkpoints.log[m];
+            instructions.subList(instrFrom, instrTo).clear();
+            instructions.addAll(instrFrom, newInstructions);
+            log.redo(analyser, logTo, log.count);
+            log.replace(logFrom, logTo, newLog);
+            int offsetDelta = analyser.nextOffset - checkpoints.offset[m];
+            checkpoints.replace(c + 1, m, newCheckpoints, tokenDelta, newInstructions.size() - (instrTo - instrFrom),
+                    newLog.count - (logTo - logFrom), offsetDelta);
+            return instructions;
+        }
+
+        if (failure != null) {
+            // 只保留到最后一个完整的检查点
+            int keepInstr = newCheckpoints.count > 0 ? newCheckpoints.instr[newCheckpoints.count - 1] - instrFrom : 0;
+            int keepLog = newCheckpoints.count > 0 ? newCheckpoints.log[newCheckpoints.count - 1] - logFrom : 0;
+            newLog.undo(analyser, keepLog, newLog.count);
+            newLog.count = keepLog;
+            newInstructions.subList(keepInstr, newInstructions.size()).clear();
+        }
+        instructions.subList(instrFrom, instructions.size()).clear();
+        instructions.addAll(newInstructions);
+        log.count = logFrom;
+        log.append(newLog);
+        checkpoints.replace(c + 1, checkpoints.count, newCheckpoints, 0, 0, 0, 0);
+        error = failure;
+        if (failure != null) {
+            throw failure;
+        }
+        return instructions;
+    }
+
+    /**
+     * 记录检查点和符号表修改，在对齐以后的检查点上判断能不能沿用原来的结果
+     */
+    private class Recorder implements Analyser.Listener {
+        @Override
+        public void checkpoint(int phase) {
+            int token = analyser.cursor;
+            if (token == checkpoints.token[resumeFrom] && phase == checkpoints.phase[resumeFrom]) {
+                // 恢复的那个检查点本身
+                return;
+            }
+            if (token >= syncToken && tryConverge(token - tokenDelta, phase)) {
+                throw Converged.INSTANCE;
+            }
+            newCheckpoints.add(token, checkpoints.instr[resumeFrom] + newInstructions.size(),
+                    checkpoints.log[resumeFrom] + newLog.count, analyser.nextOffset, phase);
+        }
+
+        @Override
+        public void symbolAdded(int nameId, int symbol) {
+            newLog.add(nameId, symbol);
+        }
+
+        @Override
+        public void symbolInitialized(int nameId) {
+            newLog.add(nameId, SymbolLog.INIT);
+        }
+
+        /**
+         * 原来在 oldToken 处、同一部分的检查点上，后面的分析结果是否和现在一样
+         *
+         * 从恢复的检查点到这里，新旧两次分析改过的每个符号，现在的状态都要和原来一样。
+         * 只有一个例外：到了语句部分以后不会再声明新的符号，原来没有出错说明后面的语句没有用到
+         * 原来不存在的符号，所以这次新声明的符号不影响后面，栈偏移也用不到了
+         */
+        private boolean tryConverge(int oldToken, int phase) {
+            var old = checkpoints;
+            while (nextOld < old.count
+                    && (old.token[nextOld] < oldToken || old.token[nextOld] == oldToken && old.phase[nextOld] < phase)) {
+                nextOld++;
+            }
+            if (nextOld == old.count || old.token[nextOld] != oldToken || old.phase[nextOld] != phase) {
+                return false;
+            }
+            boolean statements = phase == Analyser.PHASE_STATEMENT;
+            if (!statements && old.offset[nextOld] != analyser.nextOffset) {
+                return false;
+            }
+            int from = old.log[resumeFrom];
+            int to = old.log[nextOld];
+            if (to - from + newLog.count > MAX_COMPARED_CHANGES) {
+                return false;
+            }
+            for (int i = from; i < to; i++) {
+                if (!sameState(log.ids[i], from, to, statements)) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < newLog.count; i++) {
+                if (!sameState(newLog.ids[i], from, to, statements)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 比较一个符号现在的状态和原来在 old.log[to] 处的状态
+         */
+        private boolean sameState(int nameId, int from, int to, boolean statements) {
+            int now = analyser.symbolTable.resolve(nameId);
+            // 先推出恢复的检查点处的状态，再按原来的修改记录往后推
+            int state = newLog.stateBefore(nameId, now);
+            for (int i = from; i < to; i++) {
+                if (log.ids[i] == nameId) {
+                    state = log.apply(i, state);
+                }
+            }
+            return state == now || statements && state == SymbolTable.ABSENT;
+        }
+    }
+
+    /**
+     * 用来从分析过程中跳出来
+     */
+    private static final class Converged extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Converged INSTANCE = new Converged();
+
+        private Converged() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 检查点：第一个 token 的下标，之前生成了多少条指令、有多少条符号表修改，栈偏移和所在的部分
+     */
+    private static final class Checkpoints {
+        int[] token = new int[64];
+        int[] instr = new int[64];
+        int[] log = new int[64];
+        int[] offset = new int[64];
+        int[] phase = new int[64];
+        int count = 0;
+
+        void add(int token, int instr, int log, int offset, int phase) {
+            if (count == this.token.length) {
+                resize(count * 2);
+            }
+            this.token[count] = token;
+            this.instr[count] = instr;
+            this.log[count] = log;
+            this.offset[count] = offset;
+            this.phase[count] = phase;
+            count++;
+        }
+
+        private void resize(int capacity) {
+            token = Arrays.copyOf(token, capacity);
+            instr = Arrays.copyOf(instr, capacity);
+            log = Arrays.copyOf(log, capacity);
+            offset = Arrays.copyOf(offset, capacity);
+            phase = Arrays.copyOf(phase, capacity);
+        }
+
+        /**
+         * 第 first 个 token 变了以后从哪个检查点开始重新分析
+         *
+         * 检查点记下的部分是由它之前的 token 决定的，但是同一个 token 前面可能有好几个检查点
+         * （比如常量声明结束、变量声明开始），只有第一个不依赖这个 token 本身
+         */
+        int resumePoint(int first) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (token[mid] < first) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo < count && token[lo] == first ? lo : lo - 1;
+        }
+
+        /**
+         * 把 [from, to) 换成 insert，后面的检查点平移
+         */
+        void replace(int from, int to, Checkpoints insert, int tokenDelta, int instrDelta, int logDelta,
+                int offsetDelta) {
+            int newCount = count - (to - from) + insert.count;
+            if (newCount > token.length) {
+                resize(Math.max(newCount, count * 2));
+            }
+            int tail = count - to;
+            int at = from + insert.count;
+            System.arraycopy(token, to, token, at, tail);
+            System.arraycopy(instr, to, instr, at, tail);
+            System.arraycopy(log, to, log, at, tail);
+            System.arraycopy(offset, to, offset, at, tail);
+            System.arraycopy(phase, to, phase, at, tail);
+            System.arraycopy(insert.token, 0, token, from, insert.count);
+            System.arraycopy(insert.instr, 0, instr, from, insert.count);
+            System.arraycopy(insert.log, 0, log, from, insert.count);
+            System.arraycopy(insert.offset, 0, offset, from, insert.count);
+            System.arraycopy(insert.phase, 0, phase, from, insert.count);
+            for (int i = at; i < newCount; i++) {
+                token[i] += tokenDelta;
+                instr[i] += instrDelta;
+                log[i] += logDelta;
+                offset[i] += offsetDelta;
+            }
+            count = newCount;
+        }
+    }
+
+    /**
+     * 符号表的修改记录：加入符号时记下压缩后的符号，设置为已赋值时记 INIT
+     */
+    private static final class SymbolLog {
+        /** 设置为已赋值；真正的符号总带着 DECLARED 标志，不会和它相同 */
+        static final int INIT = SymbolTable.ABSENT;
+
+        int[] ids = new int[64];
+        int[] symbols = new int[64];
+        int count = 0;
+
+        void add(int nameId, int symbol) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                symbols = Arrays.copyOf(symbols, count * 2);
+            }
+            ids[count] = nameId;
+            symbols[count] = symbol;
+            count++;
+        }
+
+        void append(SymbolLog other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.ids[i], other.symbols[i]);
+            }
+        }
+
+        /**
+         * 把 [from, to) 换成 insert 中的全部记录
+         */
+        void replace(int from, int to, SymbolLog insert) {
+            var tailIds = Arrays.copyOfRange(ids, to, count);
+            var tailSymbols = Arrays.copyOfRange(symbols, to, count);
+            count = from;
+            append(insert);
+            for (int i = 0; i < tailIds.length; i++) {
+                add(tailIds[i], tailSymbols[i]);
+            }
+        }
+
+        /**
+         * 第 i 条修改作用在 state 上之后的状态
+         */
+        int apply(int i, int state) {
+            return symbols[i] == INIT ? state | SymbolTable.INITIALIZED : symbols[i];
+        }
+
+        /**
+         * 一个符号在这些修改都发生之前的状态
+         *
+         * @param nameId 标识符的编号
+         * @param now    修改之后的状态
+         */
+        int stateBefore(int nameId, int now) {
+            int state = now;
+            for (int i = count - 1; i >= 0; i--) {
+                if (ids[i] == nameId) {
+                    if (symbols[i] != INIT) {
+                        // 在这之前还没有声明
+                        return SymbolTable.ABSENT;
+                    }
+                    state &= ~SymbolTable.INITIALIZED;
+                }
+            }
+            return state;
+        }
+
+        /**
+         * 倒着撤销 [from, to) 中的修改
+         */
+        void undo(Analyser analyser, int from, int to) {
+            for (int i = to - 1; i >= from; i--) {
+                if (symbols[i] == INIT) {
+                    analyser.symbolTable.setInitialized(ids[i], false);
+                } else {
+                    analyser.symbolTable.put(ids[i], SymbolTable.ABSENT);
+                }
+            }
+        }
+
+        /**
+         * 按顺序重做 [from, to) 中的修改
+         */
+        void redo(Analyser analyser, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (symbols[i] == INIT) {
+                    analyser.symbolTable.setInitialized(ids[i], true);
+                } else {
+                    analyser.symbolTable.put(ids[i], symbols[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package miniplc0java.analyser;
+
+import java.util.Arrays;
+
+/**
+ * 符号表，下标是标识符在 NameTable 中的编号
+ *
+ * 每个符号压成一个 int：栈偏移左移 3 位，低 3 位是 DECLARED、CONSTANT、INITIALIZED 标志，
+ * 0 表示没有这个符号。查一次 resolve() 就能拿到分析需要的全部信息，也不用给每个符号分配对象
+ */
+final class SymbolTable {
+    /** 没有这个符号 */
+    static final int ABSENT = 0;
+
+    static final int INITIALIZED = 1;
+    static final int CONSTANT = 2;
+    static final int DECLARED = 4;
+
+    private static final int OFFSET_SHIFT = 3;
+
+    private int[] symbols = new int[64];
+
+    /**
+     * 把一个符号压成一个整数
+     */
+    static int pack(boolean isConstant, boolean isInitialized, int stackOffset) {
+        return stackOffset << OFFSET_SHIFT | DECLARED | (isConstant ? CONSTANT : 0) | (isInitialized ? INITIALIZED : 0);
+    }
+
+    static boolean isConstant(int symbol) {
+        return (symbol & CONSTANT) != 0;
+    }
+
+    static boolean isInitialized(int symbol) {
+        return (symbol & INITIALIZED) != 0;
+    }
+
+    static int stackOffset(int symbol) {
+        return symbol >>> OFFSET_SHIFT;
+    }
+
+    /**
+     * 按编号查找符号
+     *
+     * @param nameId 标识符的编号
+     * @return 压缩后的符号，未定义则返回 ABSENT
+     */
+    int resolve(int nameId) {
+        return nameId < symbols.length ? symbols[nameId] : ABSENT;
+    }
+
+    /**
+     * 设置一个符号，symbol 为 ABSENT 则删除
+     */
+    void put(int nameId, int symbol) {
+        if (nameId >= symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(nameId + 1, symbols.length * 2));
+        }
+        symbols[nameId] = symbol;
+    }
+
+    /**
+     * 设置一个已经定义的符号是否已赋值
+     */
+    void setInitialized(int nameId, boolean isInitialized) {
+        if (isInitialized) {
+            symbols[nameId] |= INITIALIZED;
+        } else {
+            symbols[nameId] &= ~INITIALIZED;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+
+/**
+ * 从指令序列提升出来的表达式树（见 InstructionLifter），所有结点都存在几个并列的基本类型数组里
+ *
+ * 结点用下标表示：kind 是结点的种类，left/right 是子结点的下标，value 是常数或者栈偏移。
+ * 程序是按顺序排列的语句结点。reset() 以后数组留给下一次编译用，整棵树不分配任何对象
+ */
+public final class AstArena {
+    /** 常数，value 是值 */
+    public static final byte LIT = 0;
+    /** 读变量，value 是栈偏移 */
+    public static final byte LOAD = 1;
+    /** 取负，left 是操作数；指令里的 LIT 0 减去一个值都算作取负 */
+    public static final byte NEG = 2;
+    /** 二元运算，left 和 right 是两个操作数 */
+    public static final byte ADD = 3;
+    public static final byte SUB = 4;
+    public static final byte MUL = 5;
+    public static final byte DIV = 6;
+    /** 在栈顶新建一个变量（常量声明、带初值的变量声明、变量的第一次赋值），left 是表达式，value 是栈偏移 */
+    public static final byte DEFINE = 7;
+    /** 给已经有值的变量赋值，left 是表达式，value 是栈偏移 */
+    public static final byte STORE = 8;
+    /** 输出，left 是表达式 */
+    public static final byte PRINT = 9;
+
+    /** 没有子结点 */
+    public static final int NONE = -1;
+
+    private byte[] kinds;
+    private int[] lefts;
+    private int[] rights;
+    private int[] values;
+    private int size = 0;
+
+    private int[] statements = new int[64];
+    private int statementCount = 0;
+
+    public AstArena() {
+        this(64);
+    }
+
+    /**
+     * @param capacity 预先分配多少个结点
+     */
+    public AstArena(int capacity) {
+        capacity = Math.max(capacity, 1);
+        kinds = new byte[capacity];
+        lefts = new int[capacity];
+        rights = new int[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * 清空，数组留着下次用
+     */
+    public void reset() {
+        size = 0;
+        statementCount = 0;
+    }
+
+    /**
+     * 新建一个结点
+     *
+     * @return 结点的下标
+     */
+    public int add(byte kind, int left, int right, int value) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        kinds[size] = kind;
+        lefts[size] = left;
+        rights[size] = right;
+        values[size] = value;
+        return size++;
+    }
+
+    /**
+     * 把一个语句结点接到程序的最后
+     */
+    public void addStatement(int node) {
+        if (statementCount == statements.length) {
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        }
+        statements[statementCount++] = node;
+    }
+
+    /**
+     * 只清空语句列表，结点都留着，用来重新排列语句
+     */
+    public void clearStatements() {
+        statementCount = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte kind(int node) {
+        return kinds[node];
+    }
+
+    public int left(int node) {
+        return lefts[node];
+    }
+
+    public int right(int node) {
+        return rights[node];
+    }
+
+    public int value(int node) {
+        return values[node];
+    }
+
+    public void setKind(int node, byte kind) {
+        kinds[node] = kind;
+    }
+
+    public void setLeft(int node, int left) {
+        lefts[node] = left;
+    }
+
+    public void setRight(int node, int right) {
+        rights[node] = right;
+    }
+
+    public void setValue(int node, int value) {
+        values[node] = value;
+    }
+
+    public int statementCount() {
+        return statementCount;
+    }
+
+    public int statement(int i) {
+        return statements[i];
+    }
+
+    public static boolean isBinary(byte kind) {
+        return kind >= ADD && kind <= DIV;
+    }
+}
@@ -0,0 +1,104 @@
+package miniplc0java.ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 遍历表达式树重新生成指令，没有改写过的树生成的指令和 Analyser 原来生成的一样
+ *
+ * 表达式用显式的栈做后序遍历，嵌套再深也不会栈溢出
+ */
+public final class CodeGenerator {
+    /** 待访问的结点，最低位为 1 表示子结点已经处理过，该输出它自己的运算了 */
+    private int[] stack = new int[64];
+    private int depth = 0;
+
+    public List<Instruction> generate(AstArena arena) {
+        var instructions = new ArrayList<Instruction>(arena.size());
+        generate(arena, instructions::add);
+        return instructions;
+    }
+
+    /**
+     * @param arena 表达式树
+     * @param sink  每生成一条指令就调用一次
+     */
+    public void generate(AstArena arena, Consumer<Instruction> sink) {
+        for (int i = 0; i < arena.statementCount(); i++) {
+            int node = arena.statement(i);
+            expression(arena, arena.left(node), sink);
+            switch (arena.kind(node)) {
+                case AstArena.DEFINE:
+                    // 值留在栈顶，就是这个变量
+                    break;
+                case AstArena.STORE:
+                    sink.accept(new Instruction(Operation.STO, arena.value(node)));
+                    break;
+                case AstArena.PRINT:
+                    sink.accept(new Instruction(Operation.WRT));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not a statement: " + arena.kind(node));
+            }
+        }
+    }
+
+    private void expression(AstArena arena, int root, Consumer<Instruction> sink) {
+        push(root << 1);
+        while (depth > 0) {
+            int entry = stack[--depth];
+            int node = entry >>> 1;
+            byte kind = arena.kind(node);
+            if ((entry & 1) != 0) {
+                sink.accept(new Instruction(operation(kind)));
+                continue;
+            }
+            switch (kind) {
+                case AstArena.LIT:
+                    sink.accept(new Instruction(Operation.LIT, arena.value(node)));
+                    break;
+                case AstArena.LOAD:
+                    sink.accept(new Instruction(Operation.LOD, arena.value(node)));
+                    break;
+                case AstArena.NEG:
+                    sink.accept(new Instruction(Operation.LIT, 0));
+                    push(node << 1 | 1);
+                    push(arena.left(node) << 1);
+                    break;
+                default:
+                    push(node << 1 | 1);
+                    push(arena.right(node) << 1);
+                    push(arena.left(node) << 1);
+                    break;
+            }
+        }
+    }
+
+    private static Operation operation(byte kind) {
+        switch (kind) {
+            case AstArena.NEG:
+            case AstArena.SUB:
+                return Operation.SUB;
+            case AstArena.ADD:
+                return Operation.ADD;
+            case AstArena.MUL:
+                return Operation.MUL;
+            case AstArena.DIV:
+                return Operation.DIV;
+            default:
+                throw new IllegalArgumentException("Not an operator: " + kind);
+        }
+    }
+
+    private void push(int entry) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = entry;
+    }
+}
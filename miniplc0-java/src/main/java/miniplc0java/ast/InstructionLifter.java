@@ -0,0 +1,116 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 作为 Analyser 的 sink，把已经生成的指令提升回表达式树
+ *
+ * 这不是语法分析的产物，而是对指令序列的反编译：Analyser 照常生成指令，这里跟着栈走一遍再把树拼出来。
+ * LIT/LOD 是叶子，运算指令把栈顶两个结点合成一个，LIT 0 减去一个值就是取负，
+ * 所以源程序里的 0 - b 和 -b 得到的是同一个 NEG 结点，括号和其他写法上的区别也都看不到了，
+ * 只保证 CodeGenerator 能生成和原来一样的指令。一条语句的临时值在语句结束时都用掉了，所以遇到 STO/WRT 时
+ * 它下面还没有归属的值都是前面的语句留下的新变量，分析结束时剩下的也一样
+ */
+public final class InstructionLifter implements Consumer<Instruction> {
+    private final AstArena arena;
+
+    /** 栈上每个值对应的结点 */
+    private int[] stack = new int[64];
+    private int depth = 0;
+
+    /** 栈底这么多个值已经确定是变量，生成过 DEFINE 了 */
+    private int variables = 0;
+
+    /**
+     * @param arena 结点放在这里，调用者负责先 reset()
+     */
+    public InstructionLifter(AstArena arena) {
+        this.arena = arena;
+    }
+
+    @Override
+    public void accept(Instruction instruction) {
+        int x = instruction.getX();
+        switch (instruction.getOpt()) {
+            case LIT:
+                push(arena.add(AstArena.LIT, AstArena.NONE, AstArena.NONE, x));
+                break;
+            case LOD:
+                push(arena.add(AstArena.LOAD, AstArena.NONE, AstArena.NONE, x));
+                break;
+            case ADD:
+                binary(AstArena.ADD);
+                break;
+            case SUB:
+                binary(AstArena.SUB);
+                break;
+            case MUL:
+                binary(AstArena.MUL);
+                break;
+            case DIV:
+                binary(AstArena.DIV);
+                break;
+            case STO: {
+                int value = pop();
+                defineRest();
+                arena.addStatement(arena.add(AstArena.STORE, value, AstArena.NONE, x));
+                break;
+            }
+            case WRT: {
+                int value = pop();
+                defineRest();
+                arena.addStatement(arena.add(AstArena.PRINT, value, AstArena.NONE, 0));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unexpected instruction: " + instruction);
+        }
+    }
+
+    /**
+     * 所有指令都收到以后调用
+     *
+     * @return 提升出来的表达式树
+     */
+    public AstArena finish() {
+        defineRest();
+        return arena;
+    }
+
+    private void binary(byte kind) {
+        int right = pop();
+        int left = pop();
+        if (kind == AstArena.SUB && arena.kind(left) == AstArena.LIT && arena.value(left) == 0) {
+            push(arena.add(AstArena.NEG, right, AstArena.NONE, 0));
+        } else {
+            push(arena.add(kind, left, right, 0));
+        }
+    }
+
+    /**
+     * 栈上还没有归属的值都是新变量
+     */
+    private void defineRest() {
+        for (int slot = variables; slot < depth; slot++) {
+            arena.addStatement(arena.add(AstArena.DEFINE, stack[slot], AstArena.NONE, slot));
+        }
+        variables = depth;
+    }
+
+    private void push(int node) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = node;
+    }
+
+    private int pop() {
+        if (depth == variables) {
+            throw new IllegalStateException("Stack underflow");
+        }
+        return stack[--depth];
+    }
+}
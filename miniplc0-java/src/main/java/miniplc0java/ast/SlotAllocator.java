@@ -0,0 +1,173 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+
+/**
+ * 按变量的活跃区间让互不重叠的变量共用同一个栈位置
+ *
+ * 一个变量从定义它的语句活到最后一次读它或者给它赋值的语句。按语句顺序扫描一遍，
+ * 活到这条语句为止的变量在这条语句读完以后就把位置空出来，新定义的变量优先用空出来的位置：
+ * 把 DEFINE 改成 STORE，算出的值写进那个位置，而不是压在栈顶上。没有空位时才压栈新开一个位置。
+ * 区间按起点排好序，这样贪心分配用到的位置数就是同时活跃的变量数的最大值。
+ * 只改写 DEFINE/STORE/LOAD 的栈偏移，不增删语句和表达式，运行时的错误也不受影响
+ */
+public final class SlotAllocator {
+    private int slotsBefore = 0;
+    private int slotsAfter = 0;
+
+    /** 遍历表达式用的栈 */
+    private int[] stack = new int[64];
+    private int depth;
+
+    /**
+     * 就地改写表达式树
+     *
+     * @param arena InstructionLifter 提升出来的表达式树
+     */
+    public void run(AstArena arena) {
+        int statements = arena.statementCount();
+
+        // 原来的栈偏移就是定义的顺序
+        int variables = 0;
+        for (int i = 0; i < statements; i++) {
+            if (arena.kind(arena.statement(i)) == AstArena.DEFINE) {
+                variables++;
+            }
+        }
+
+        slotsBefore = variables;
+        slotsAfter = variables;
+
+        // 每个变量最后一次用到是在哪条语句
+        var lastUse = new int[variables];
+        int defined = 0;
+        for (int i = 0; i < statements; i++) {
+            int node = arena.statement(i);
+            depth = 0;
+            push(arena.left(node));
+            while (depth > 0) {
+                int e = next(arena);
+                if (arena.kind(e) == AstArena.LOAD && !use(lastUse, arena.value(e), defined, i)) {
+                    return;
+                }
+            }
+            byte kind = arena.kind(node);
+            if (kind == AstArena.DEFINE) {
+                lastUse[defined++] = i;
+            } else if (kind == AstArena.STORE && !use(lastUse, arena.value(node), defined, i)) {
+                return;
+            }
+        }
+
+        // 按最后一次用到的语句把变量串起来
+        var dyingHead = new int[statements];
+        Arrays.fill(dyingHead, -1);
+        var dyingNext = new int[variables];
+        for (int v = 0; v < variables; v++) {
+            dyingNext[v] = dyingHead[lastUse[v]];
+            dyingHead[lastUse[v]] = v;
+        }
+
+        var slotOf = new int[variables];
+        var free = new int[variables];
+        int freeCount = 0;
+        int slots = 0;
+        defined = 0;
+        for (int i = 0; i < statements; i++) {
+            int node = arena.statement(i);
+            rename(arena, arena.left(node), slotOf);
+
+            int v = -1;
+            if (arena.kind(node) == AstArena.DEFINE) {
+                v = defined++;
+            } else if (arena.kind(node) == AstArena.STORE) {
+                arena.setValue(node, slotOf[arena.value(node)]);
+            }
+            // 读完了再放出去，这条语句定义的变量可以马上用上
+            for (int d = dyingHead[i]; d != -1; d = dyingNext[d]) {
+                if (d != v) {
+                    free[freeCount++] = slotOf[d];
+                }
+            }
+            if (v >= 0) {
+                if (freeCount > 0) {
+                    slotOf[v] = free[--freeCount];
+                    arena.setKind(node, AstArena.STORE);
+                } else {
+                    slotOf[v] = slots++;
+                }
+                arena.setValue(node, slotOf[v]);
+                if (lastUse[v] == i) {
+                    // 定义了却从来没用过
+                    free[freeCount++] = slotOf[v];
+                }
+            }
+        }
+
+        slotsAfter = slots;
+    }
+
+    /**
+     * 记下第 i 条语句用到了栈上的 slot
+     *
+     * @return slot 是不是已经定义过的变量。先声明的变量后赋值时，Analyser 分配的栈偏移和值实际所在的位置对不上，
+     *         会读写到还不存在的位置，这样的程序运行时本来就会出错，不去改它
+     */
+    private static boolean use(int[] lastUse, int slot, int defined, int i) {
+        if (slot < 0 || slot >= defined) {
+            return false;
+        }
+        lastUse[slot] = i;
+        return true;
+    }
+
+    /**
+     * 把表达式里读的栈偏移换成新的
+     */
+    private void rename(AstArena arena, int root, int[] slotOf) {
+        depth = 0;
+        push(root);
+        while (depth > 0) {
+            int e = next(arena);
+            if (arena.kind(e) == AstArena.LOAD) {
+                arena.setValue(e, slotOf[arena.value(e)]);
+            }
+        }
+    }
+
+    /**
+     * 从栈上取出下一个结点，并把它的子结点放上去
+     */
+    private int next(AstArena arena) {
+        int e = stack[--depth];
+        byte kind = arena.kind(e);
+        if (kind == AstArena.NEG) {
+            push(arena.left(e));
+        } else if (AstArena.isBinary(kind)) {
+            push(arena.left(e));
+            push(arena.right(e));
+        }
+        return e;
+    }
+
+    private void push(int node) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = node;
+    }
+
+    /**
+     * @return 上一次 run() 之前变量占用的栈位置数
+     */
+    public int getSlotsBefore() {
+        return slotsBefore;
+    }
+
+    /**
+     * @return 上一次 run() 之后变量占用的栈位置数
+     */
+    public int getSlotsAfter() {
+        return slotsAfter;
+    }
+}
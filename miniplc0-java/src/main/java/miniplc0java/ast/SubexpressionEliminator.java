@@ -0,0 +1,340 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+
+/**
+ * 公共子表达式消除：局部值编号
+ *
+ * 程序是一整段直线代码。给每个表达式结点编一个值编号，运算和操作数的编号都相同的结点算出的值一定相同；
+ * 读变量时带上这个变量被赋值过几次，中间被重新 STO 过的变量不算同一个值。加法和乘法交换操作数不影响编号。
+ * 同一个编号出现两次以上的运算，在第一次出现的那条语句前面插入一个 DEFINE，把值存进编译器新开的栈位置，
+ * 每一次出现都换成 LOAD。最后按定义的顺序重新给所有变量编栈偏移。
+ *
+ * 提前算的只是那条语句本来就要算的表达式，操作数的值也一样，除以 0 仍然在同一条语句处出错，输出不变
+ */
+public final class SubexpressionEliminator {
+    private int reused = 0;
+    private int instructionsBefore = 0;
+    private int instructionsAfter = 0;
+
+    /** 每个结点的值编号，叶子也有 */
+    private int[] numbers = new int[64];
+
+    /** 值编号的键，下标是编号 */
+    private long[] keys = new long[64];
+    /** 这个值编号在程序里还会出现几次 */
+    private int[] counts = new int[64];
+    private int numberCount = 0;
+
+    /** 开放地址的散列表，存的是编号 + 1，0 表示这个槽是空的 */
+    private int[] slots = new int[128];
+
+    private int[] stack = new int[64];
+    private int depth;
+    private int[] subtree = new int[64];
+
+    /**
+     * 就地改写表达式树
+     *
+     * @param arena InstructionLifter 提升出来的表达式树
+     */
+    public void run(AstArena arena) {
+        int statements = arena.statementCount();
+        var order = new int[statements];
+        int variables = 0;
+        for (int i = 0; i < statements; i++) {
+            order[i] = arena.statement(i);
+            if (arena.kind(order[i]) == AstArena.DEFINE) {
+                variables++;
+            }
+        }
+
+        reused = 0;
+        instructionsBefore = cost(arena);
+        instructionsAfter = instructionsBefore;
+        if (!number(arena, order, variables)) {
+            return;
+        }
+
+        // 第一次出现的时候决定要不要存起来
+        var temps = new int[numberCount];
+        Arrays.fill(temps, -1);
+        int identities = variables;
+        arena.clearStatements();
+        for (int node : order) {
+            depth = 0;
+            push(node << 1);
+            while (depth > 0) {
+                int entry = stack[--depth];
+                if (entry < 0) {
+                    // 子表达式都处理完了，在这条语句前面定义临时变量
+                    int n = -1 - entry;
+                    arena.addStatement(arena.add(AstArena.DEFINE, n, AstArena.NONE, temps[numbers[n]]));
+                    continue;
+                }
+                int parent = entry >>> 1;
+                boolean right = (entry & 1) != 0;
+                int n = right ? arena.right(parent) : arena.left(parent);
+                byte kind = arena.kind(n);
+                if (kind == AstArena.LIT || kind == AstArena.LOAD) {
+                    continue;
+                }
+                int number = numbers[n];
+                if (temps[number] >= 0) {
+                    replace(arena, parent, right, temps[number]);
+                    reused++;
+                    continue;
+                }
+                if (counts[number] >= 2) {
+                    // 后面的几次会被换掉，它们里面的子表达式也就不会再出现了
+                    forget(arena, n, counts[number] - 1);
+                    temps[number] = identities++;
+                    replace(arena, parent, right, temps[number]);
+                    push(-1 - n);
+                }
+                if (AstArena.isBinary(kind)) {
+                    push(n << 1 | 1);
+                }
+                push(n << 1);
+            }
+            arena.addStatement(node);
+        }
+
+        // 重新编栈偏移
+        var slotOf = new int[identities];
+        int offset = 0;
+        for (int i = 0; i < arena.statementCount(); i++) {
+            int node = arena.statement(i);
+            depth = 0;
+            push(arena.left(node));
+            while (depth > 0) {
+                int n = next(arena);
+                if (arena.kind(n) == AstArena.LOAD) {
+                    arena.setValue(n, slotOf[arena.value(n)]);
+                }
+            }
+            if (arena.kind(node) == AstArena.DEFINE) {
+                slotOf[arena.value(node)] = offset;
+                arena.setValue(node, offset++);
+            } else if (arena.kind(node) == AstArena.STORE) {
+                arena.setValue(node, slotOf[arena.value(node)]);
+            }
+        }
+        instructionsAfter = cost(arena);
+    }
+
+    /**
+     * 给所有表达式结点编号，并数出每个编号出现的次数
+     *
+     * @return 是否每次读写的都是已经定义的变量；先声明的变量后赋值时 Analyser 分配的栈偏移和值实际所在的位置
+     *         对不上，这样的程序运行时本来就会出错，不去改它
+     */
+    private boolean number(AstArena arena, int[] order, int variables) {
+        if (numbers.length < arena.size()) {
+            numbers = new int[Math.max(arena.size(), numbers.length * 2)];
+        }
+        numberCount = 0;
+        Arrays.fill(slots, 0);
+        var versions = new int[variables];
+        int defined = 0;
+        for (int node : order) {
+            // 后序遍历，最低位为 1 表示子结点已经编好号了
+            depth = 0;
+            push(arena.left(node) << 1);
+            while (depth > 0) {
+                int entry = stack[--depth];
+                int n = entry >>> 1;
+                byte kind = arena.kind(n);
+                long key;
+                if (kind == AstArena.LIT) {
+                    key = arena.value(n) & 0xffffffffL;
+                } else if (kind == AstArena.LOAD) {
+                    int slot = arena.value(n);
+                    if (slot < 0 || slot >= defined) {
+                        return false;
+                    }
+                    key = (long) slot << 30 | versions[slot];
+                } else if ((entry & 1) == 0) {
+                    push(n << 1 | 1);
+                    if (AstArena.isBinary(kind)) {
+                        push(arena.right(n) << 1);
+                    }
+                    push(arena.left(n) << 1);
+                    continue;
+                } else if (kind == AstArena.NEG) {
+                    key = numbers[arena.left(n)];
+                } else {
+                    long a = numbers[arena.left(n)];
+                    long b = numbers[arena.right(n)];
+                    if ((kind == AstArena.ADD || kind == AstArena.MUL) && a > b) {
+                        long t = a;
+                        a = b;
+                        b = t;
+                    }
+                    key = a << 30 | b;
+                }
+                numbers[n] = intern((long) kind << 60 | key);
+                counts[numbers[n]]++;
+            }
+            if (arena.kind(node) == AstArena.DEFINE) {
+                defined++;
+            } else if (arena.kind(node) == AstArena.STORE) {
+                int slot = arena.value(node);
+                if (slot < 0 || slot >= defined) {
+                    return false;
+                }
+                versions[slot]++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 查找或者加入一个值编号
+     */
+    private int intern(long key) {
+        int mask = slots.length - 1;
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            int number = slots[i] - 1;
+            if (number < 0) {
+                break;
+            }
+            if (keys[number] == key) {
+                return number;
+            }
+        }
+        if (numberCount == keys.length) {
+            keys = Arrays.copyOf(keys, numberCount * 2);
+            counts = Arrays.copyOf(counts, numberCount * 2);
+        }
+        keys[numberCount] = key;
+        counts[numberCount] = 0;
+        numberCount++;
+        if (numberCount * 2 > slots.length) {
+            rehash();
+        } else {
+            int i = mix(key) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = numberCount;
+        }
+        return numberCount - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int number = 0; number < numberCount; number++) {
+            int i = mix(keys[number]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = number + 1;
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * n 以下的子表达式少出现 times 次
+     */
+    private void forget(AstArena arena, int n, int times) {
+        int top = 0;
+        subtree[top++] = n;
+        while (top > 0) {
+            int e = subtree[--top];
+            if (e != n) {
+                counts[numbers[e]] -= times;
+            }
+            byte kind = arena.kind(e);
+            if (kind == AstArena.NEG || AstArena.isBinary(kind)) {
+                if (top + 2 > subtree.length) {
+                    subtree = Arrays.copyOf(subtree, subtree.length * 2);
+                }
+                subtree[top++] = arena.left(e);
+                if (AstArena.isBinary(kind)) {
+                    subtree[top++] = arena.right(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把 parent 的一个子结点换成读临时变量
+     */
+    private static void replace(AstArena arena, int parent, boolean right, int temp) {
+        int load = arena.add(AstArena.LOAD, AstArena.NONE, AstArena.NONE, temp);
+        if (right) {
+            arena.setRight(parent, load);
+        } else {
+            arena.setLeft(parent, load);
+        }
+    }
+
+    /**
+     * 生成的指令条数，也就是直线代码执行的指令条数
+     */
+    private int cost(AstArena arena) {
+        int total = 0;
+        for (int i = 0; i < arena.statementCount(); i++) {
+            int node = arena.statement(i);
+            if (arena.kind(node) != AstArena.DEFINE) {
+                total++;
+            }
+            depth = 0;
+            push(arena.left(node));
+            while (depth > 0) {
+                // 取负是 LIT 0, x, SUB
+                total += arena.kind(next(arena)) == AstArena.NEG ? 2 : 1;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 从栈上取出下一个结点，并把它的子结点放上去
+     */
+    private int next(AstArena arena) {
+        int e = stack[--depth];
+        byte kind = arena.kind(e);
+        if (kind == AstArena.NEG) {
+            push(arena.left(e));
+        } else if (AstArena.isBinary(kind)) {
+            push(arena.left(e));
+            push(arena.right(e));
+        }
+        return e;
+    }
+
+    private void push(int entry) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = entry;
+    }
+
+    /**
+     * @return 上一次 run() 中有几处重复计算换成了读临时变量
+     */
+    public int getReused() {
+        return reused;
+    }
+
+    /**
+     * @return 上一次 run() 之前的指令条数
+     */
+    public int getInstructionsBefore() {
+        return instructionsBefore;
+    }
+
+    /**
+     * @return 上一次 run() 之后的指令条数
+     */
+    public int getInstructionsAfter() {
+        return instructionsAfter;
+    }
+}
@@ -0,0 +1,220 @@
+package miniplc0java.bytecode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 二进制字节码：格式的定义和读进来的程序
+ *
+ * 格式（多字节的整数都是大端）：
+ *
+ * <pre>
+ * magic     4 字节 "MPL0"
+ * version   1 字节
+ * 指令      count 条，每条是 1 字节的操作码（Operation 的序号），LIT/LOD/STO 后面跟一个操作数
+ * count     varint，指令条数
+ * maxDepth  varint，运行时栈的最大深度
+ * length    1 字节，count 和 maxDepth 一共占几个字节
+ * crc32     4 字节，前面所有字节的 CRC32
+ * </pre>
+ *
+ * 指令条数和最大深度放在末尾，写的一方不用等到全部指令生成完才开始输出；读的时候从末尾的 length
+ * 往前找到它们。
+ *
+ * varint 是 LEB128：每字节 7 位，低位在前，最高位为 1 表示后面还有，最多 5 字节，第 5 字节只能用低 4 位。
+ * LIT 的操作数先做 zigzag 编码，小的负数也只占一个字节；LOD/STO 的栈偏移按无符号数编码。
+ *
+ * 读进来的指令放在一个 int 数组里，第 i 条指令的操作码是 code[2i]，操作数是 code[2i + 1]
+ */
+public final class Bytecode {
+    static final byte[] MAGIC = { 'M', 'P', 'L', '0' };
+    static final byte VERSION = 2;
+
+    /** 末尾最短的长度：count 和 maxDepth 各 1 字节，length 1 字节，校验和 4 字节 */
+    private static final int MIN_TRAILER_SIZE = 7;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final int[] code;
+    private final int count;
+    private final int maxDepth;
+
+    private Bytecode(int[] code, int count, int maxDepth) {
+        this.code = code;
+        this.count = count;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * @param op 指令
+     * @return 这条指令后面有没有操作数
+     */
+    static boolean hasOperand(Operation op) {
+        return op == Operation.LIT || op == Operation.LOD || op == Operation.STO;
+    }
+
+    /**
+     * @return 执行这条指令以后栈的深度变化了多少
+     */
+    static int stackEffect(Operation op) {
+        switch (op) {
+            case LIT:
+            case LOD:
+                return 1;
+            case ILL:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * 读入整个输入流
+     *
+     * @throws IOException 读取出错，或者不是合法的字节码
+     */
+    public static Bytecode load(InputStream in) throws IOException {
+        var bytes = in.readAllBytes();
+        return load(bytes, bytes.length);
+    }
+
+    /**
+     * @param bytes  字节码
+     * @param length 字节数
+     * @throws IOException 不是合法的字节码
+     */
+    public static Bytecode load(byte[] bytes, int length) throws IOException {
+        if (length < MAGIC.length + 1 + MIN_TRAILER_SIZE) {
+            throw new IOException("Bytecode is truncated.");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                throw new IOException("Not a bytecode file.");
+            }
+        }
+        if (bytes[MAGIC.length] != VERSION) {
+            throw new IOException("Unsupported bytecode version " + bytes[MAGIC.length] + ".");
+        }
+        var crc = new CRC32();
+        crc.update(bytes, 0, length - 4);
+        int stored = (bytes[length - 4] & 0xff) << 24 | (bytes[length - 3] & 0xff) << 16
+                | (bytes[length - 2] & 0xff) << 8 | bytes[length - 1] & 0xff;
+        if ((int) crc.getValue() != stored) {
+            throw new IOException("Bytecode checksum mismatch.");
+        }
+
+        int trailer = length - 5 - (bytes[length - 5] & 0xff);
+        if (trailer < MAGIC.length + 1) {
+            throw new IOException("Bytecode is truncated.");
+        }
+        var counts = new Reader(bytes, trailer, length - 5);
+        int count = counts.varint();
+        int maxDepth = counts.varint();
+        if (counts.remaining() != 0) {
+            throw new IOException("Bad trailer length.");
+        }
+        var reader = new Reader(bytes, MAGIC.length + 1, trailer);
+        // 每条指令至少 1 字节，超过的一定是坏的，不能照着它分配数组
+        if (count < 0 || count > reader.remaining()) {
+            throw new IOException("Bad instruction count " + count + ".");
+        }
+        var code = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            int op = reader.readByte();
+            if (op >= OPERATIONS.length) {
+                throw new IOException("Bad opcode " + op + " at instruction " + i + ".");
+            }
+            code[2 * i] = op;
+            if (hasOperand(OPERATIONS[op])) {
+                int x = reader.varint();
+                code[2 * i + 1] = OPERATIONS[op] == Operation.LIT ? x >>> 1 ^ -(x & 1) : x;
+            }
+        }
+        if (reader.remaining() != 0) {
+            throw new IOException("Trailing bytes after the last instruction.");
+        }
+        return new Bytecode(code, count, maxDepth);
+    }
+
+    /**
+     * @return 指令，第 i 条指令的操作码是 code[2i]，操作数是 code[2i + 1]，没有操作数时是 0
+     */
+    public int[] getCode() {
+        return code;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public Operation operation(int i) {
+        return OPERATIONS[code[2 * i]];
+    }
+
+    public int operand(int i) {
+        return code[2 * i + 1];
+    }
+
+    /**
+     * @return 换回 Instruction 的列表
+     */
+    public List<Instruction> toInstructions() {
+        var instructions = new ArrayList<Instruction>(count);
+        for (int i = 0; i < count; i++) {
+            instructions.add(new Instruction(operation(i), operand(i)));
+        }
+        return instructions;
+    }
+
+    /**
+     * 按顺序读 varint，越界或者超出 32 位时报错
+     */
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        Reader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        int remaining() {
+            return end - position;
+        }
+
+        int readByte() throws IOException {
+            if (position == end) {
+                throw new IOException("Bytecode is truncated.");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                if (shift == 28 && b > 0x0f) {
+                    // 第 5 个字节只剩 4 位，再高的位或者后面还有字节都放不进 int
+                    throw new IOException("Varint is too long.");
+                }
+                value |= (b & 0x7f) << shift;
+                if (b < 0x80) {
+                    return value;
+                }
+            }
+            throw new IOException("Varint is too long.");
+        }
+    }
+}
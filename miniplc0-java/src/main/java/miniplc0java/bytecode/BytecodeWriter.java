@@ -0,0 +1,118 @@
+package miniplc0java.bytecode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 边生成指令边编码成字节码，格式见 Bytecode
+ *
+ * 可以直接作为 Analyser 的 sink，不用先攒一个 List&lt;Instruction&gt;。指令编码进一个固定大小的块，
+ * 攒满一块就写出去并算进校验和，内存占用和指令条数无关。指令条数和栈的最大深度要到最后才知道，
+ * 放在末尾，由 finish() 和校验和一起写出。
+ *
+ * Consumer 不能抛出受检异常，追加指令时写出错会抛出 UncheckedIOException
+ */
+public final class BytecodeWriter implements Consumer<Instruction> {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /** 一条指令最多占几个字节：操作码加上 5 字节的 varint */
+    private static final int MAX_INSTRUCTION_SIZE = 6;
+
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int size = 0;
+    private int count = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    /**
+     * @param out 输出，头部先放进块里，和第一块指令一起写出去
+     */
+    public BytecodeWriter(OutputStream out) {
+        this.out = out;
+        System.arraycopy(Bytecode.MAGIC, 0, block, 0, Bytecode.MAGIC.length);
+        size = Bytecode.MAGIC.length;
+        block[size++] = Bytecode.VERSION;
+    }
+
+    @Override
+    public void accept(Instruction instruction) {
+        add(instruction.getOpt(), instruction.getX());
+    }
+
+    /**
+     * 追加一条指令
+     *
+     * @param op 操作码
+     * @param x  操作数，没有操作数的指令忽略它
+     */
+    public void add(Operation op, int x) {
+        if (size + MAX_INSTRUCTION_SIZE > block.length) {
+            try {
+                drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        block[size++] = (byte) op.ordinal();
+        if (Bytecode.hasOperand(op)) {
+            varint(op == Operation.LIT ? x << 1 ^ x >> 31 : x);
+        }
+        count++;
+        depth += Bytecode.stackEffect(op);
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /**
+     * @return 已经写了多少条指令
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 写出剩下的指令、末尾的指令条数、最大深度和校验和，之后不能再追加指令
+     */
+    public void finish() throws IOException {
+        if (size + 11 > block.length) {
+            drain();
+        }
+        int start = size;
+        varint(count);
+        varint(maxDepth);
+        block[size] = (byte) (size - start);
+        size++;
+        crc.update(block, 0, size);
+        int value = (int) crc.getValue();
+        out.write(block, 0, size);
+        size = 0;
+        out.write(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+        out.flush();
+    }
+
+    /**
+     * 把块里的内容写出去
+     */
+    private void drain() throws IOException {
+        crc.update(block, 0, size);
+        out.write(block, 0, size);
+        size = 0;
+    }
+
+    /**
+     * 按无符号数写一个 varint
+     */
+    private void varint(int value) {
+        while ((value & ~0x7f) != 0) {
+            block[size++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        block[size++] = (byte) value;
+    }
+}
@@ -0,0 +1,301 @@
+package miniplc0java.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+
+/**
+ * 磁盘上按内容寻址的编译缓存
+ *
+ * 键是编译器版本、影响输出的选项和输入内容的 SHA-256，值是完整的输出和编译时输出到标准错误的提示
+ * （条目文件里先是 4 字节的提示长度和 4 字节的输出长度，后面是提示和输出）。
+ * 条目先写到同一目录下的临时文件并落盘，再原子地改名，别的进程要么看不到，要么看到完整的内容。
+ * 长度对不上的条目（比如断电时留下的空文件）当作没有命中，删掉以后重新编译。
+ * 命中和未命中的次数、条目的总大小记在 stats 文件里，修改它和淘汰条目都要先拿到 lock 文件上的锁。
+ * 总大小是边写边加的近似值，超过上限时重新统计，按最后使用时间从旧到新删除条目，命中时会更新条目的修改时间
+ */
+public class CompileCache {
+    private static final String LOCK_FILE = "lock";
+    private static final String STATS_FILE = "stats";
+    private static final String SUFFIX = ".out";
+
+    /** 同一个进程里的多个线程不能同时拿同一个文件锁 */
+    private static final Object PROCESS_LOCK = new Object();
+
+    private final Path dir;
+    private final long maxBytes;
+
+    /**
+     * @param dir      缓存目录，不存在时会创建
+     * @param maxBytes 所有条目加起来最多多大
+     * @throws IOException
+     */
+    public CompileCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * 计算缓存的键
+     *
+     * @param options 影响输出的选项
+     * @param source  输入
+     * @param length  输入的字节数
+     * @return 十六进制的 SHA-256
+     */
+    public static String key(String options, byte[] source, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((compilerVersion() + '\0' + options + '\0').getBytes(StandardCharsets.UTF_8));
+        digest.update(source, 0, length);
+        var sb = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 编译器的版本：jar 里写了 Implementation-Version 就用它，
+     * 否则用编译器所在的 jar 或者目录的路径、大小和修改时间，重新构建以后就不会用到旧的条目
+     */
+    static String compilerVersion() {
+        var version = CompileCache.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+        try {
+            var location = Path.of(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            return location + ":" + Files.size(location) + ":" + Files.getLastModifiedTime(location).toMillis();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    private Path entry(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+    }
+
+    /**
+     * 命中时把缓存的输出写到 out，丢掉提示
+     *
+     * @return 是否命中
+     * @throws IOException 没有命中时写不了统计信息，或者命中以后写 out 出错
+     */
+    public boolean lookup(String key, OutputStream out) throws IOException {
+        return lookup(key, out, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * 命中时把缓存的提示写到 messages，输出写到 out
+     *
+     * 整个条目先读进来检查长度，读不出来或者不完整的条目在写 out 之前就删掉，当作没有命中
+     *
+     * @return 是否命中
+     * @throws IOException 没有命中时写不了统计信息，或者命中以后写 out 出错
+     */
+    public boolean lookup(String key, OutputStream out, OutputStream messages) throws IOException {
+        var path = entry(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            updateStats(0, 1, 0);
+            return false;
+        } catch (IOException e) {
+            bytes = new byte[0];
+        }
+        var entry = ByteBuffer.wrap(bytes);
+        int messagesLength = bytes.length < 8 ? -1 : entry.getInt();
+        int outputLength = bytes.length < 8 ? -1 : entry.getInt();
+        if (messagesLength < 0 || outputLength < 0 || (long) messagesLength + outputLength != bytes.length - 8) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // 删不掉也没关系，下次 store() 会覆盖它
+            }
+            // 断电留下的条目多半还没有算进总大小，这里不减，总大小超过上限时会重新统计
+            updateStats(0, 1, 0);
+            return false;
+        }
+        messages.write(bytes, 8, messagesLength);
+        messages.flush();
+        out.write(bytes, 8 + messagesLength, outputLength);
+        out.flush();
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            updateStats(1, 0, 0);
+        } catch (IOException e) {
+            // 可能刚被别的进程淘汰了，或者统计信息写不进去，都不影响这次的结果
+        }
+        return true;
+    }
+
+    /**
+     * 保存一次没有提示的编译的输出，需要时淘汰旧的条目
+     */
+    public void store(String key, byte[] output) throws IOException {
+        store(key, output, new byte[0]);
+    }
+
+    /**
+     * 保存一次编译的输出和提示，需要时淘汰旧的条目
+     */
+    public void store(String key, byte[] output, byte[] messages) throws IOException {
+        var path = entry(key);
+        Files.createDirectories(path.getParent());
+        var temp = Files.createTempFile(path.getParent(), key, ".tmp");
+        try {
+            try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                var data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                data.writeInt(messages.length);
+                data.writeInt(output.length);
+                data.write(messages);
+                data.write(output);
+                data.flush();
+                // 改名之前先落盘，断电以后不会留下改了名但是内容不完整的条目
+                channel.force(true);
+            }
+            long size = Files.size(temp);
+            boolean existed = Files.exists(path);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            updateStats(0, 0, existed ? 0 : size);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return 命中次数、未命中次数和条目的总大小
+     */
+    public long[] stats() throws IOException {
+        synchronized (PROCESS_LOCK) {
+            try (var channel = lockChannel()) {
+                var lock = channel.lock();
+                try {
+                    return readStats();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 可以直接输出的统计信息
+     */
+    public String describeStats() throws IOException {
+        var stats = stats();
+        long total = stats[0] + stats[1];
+        return String.format("Cache: %d hits, %d misses (%.1f%% hit rate), %d bytes in %s", stats[0], stats[1],
+                total == 0 ? 0.0 : stats[0] * 100.0 / total, stats[2], dir);
+    }
+
+    private void updateStats(long hits, long misses, long bytes) throws IOException {
+        synchronized (PROCESS_LOCK) {
+            try (var channel = lockChannel()) {
+                var lock = channel.lock();
+                try {
+                    var stats = readStats();
+                    stats[0] += hits;
+                    stats[1] += misses;
+                    stats[2] += bytes;
+                    if (stats[2] > maxBytes) {
+                        stats[2] = evict();
+                    }
+                    var temp = Files.createTempFile(dir, STATS_FILE, ".tmp");
+                    Files.writeString(temp, stats[0] + " " + stats[1] + " " + stats[2] + "\n");
+                    Files.move(temp, dir.resolve(STATS_FILE), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private FileChannel lockChannel() throws IOException {
+        return FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private long[] readStats() throws IOException {
+        var stats = new long[3];
+        try {
+            var fields = Files.readString(dir.resolve(STATS_FILE)).trim().split(" ");
+            for (int i = 0; i < stats.length && i < fields.length; i++) {
+                stats[i] = Long.parseLong(fields[i]);
+            }
+        } catch (NoSuchFileException | NumberFormatException e) {
+            // 第一次使用，或者文件坏了，从 0 开始
+        }
+        return stats;
+    }
+
+    /**
+     * 从最久没用的条目开始删除，直到总大小不超过上限；调用时已经拿到了锁
+     *
+     * @return 剩下的条目的总大小
+     */
+    private long evict() throws IOException {
+        var entries = new ArrayList<Path>();
+        try (var shards = Files.list(dir)) {
+            for (var shard : shards.filter(Files::isDirectory).collect(Collectors.toList())) {
+                try (var files = Files.list(shard)) {
+                    files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+                }
+            }
+        }
+        var times = new long[entries.size()];
+        var sizes = new long[entries.size()];
+        long total = 0;
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                times[i] = Files.getLastModifiedTime(entries.get(i)).toMillis();
+                sizes[i] = Files.size(entries.get(i));
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            total += sizes[i];
+            order.add(i);
+        }
+        order.sort(Comparator.comparingLong(i -> times[i]));
+        for (int i : order) {
+            if (total <= maxBytes) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entries.get(i));
+                total -= sizes[i];
+            } catch (IOException e) {
+                // 正在被读（Windows），下次再说
+            }
+        }
+        return total;
+    }
+}
@@ -1,5 +1,7 @@
 package miniplc0java.error;
 
+import miniplc0java.tokenizer.Token;
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 public class AnalyzeError extends CompileError {
@@ -7,6 +9,9 @@ public class AnalyzeError extends CompileError {
 
     ErrorCode code;
     Pos pos;
+    Token token;
+    int offset;
+    LineIndex lines;
 
     @Override
     public ErrorCode getErr() {
@@ -15,6 +20,9 @@ public class AnalyzeError extends CompileError {
 
     @Override
     public Pos getPos() {
+        if (pos == null) {
+            pos = token != null ? token.getStartPos() : lines.toPos(offset);
+        }
         return pos;
     }
 
@@ -28,8 +36,32 @@ public class AnalyzeError extends CompileError {
         this.pos = pos;
     }
 
+    /**
+     * 位置取 token 的起始位置，用到的时候再换算成行列号
+     *
+     * @param code
+     * @param token 出错的 token
+     */
+    public AnalyzeError(ErrorCode code, Token token) {
+        this.code = code;
+        this.token = token;
+    }
+
+    /**
+     * 同上，位置只给出偏移（按下标读 TokenBuffer 时使用）
+     *
+     * @param code
+     * @param offset 出错位置的偏移
+     * @param lines  换算行列号用的行首表
+     */
+    public AnalyzeError(ErrorCode code, int offset, LineIndex lines) {
+        this.code = code;
+        this.offset = offset;
+        this.lines = lines;
+    }
+
     @Override
     public String toString() {
-        return new StringBuilder().append("Analyze Error: ").append(code).append(", at: ").append(pos).toString();
+        return new StringBuilder().append("Analyze Error: ").append(code).append(", at: ").append(getPos()).toString();
     }
 }
@@ -6,6 +6,13 @@ public abstract class CompileError extends Exception {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * 不记录调用栈，创建错误对象很便宜，可以在试探性的分析或者恢复模式中大量使用
+     */
+    protected CompileError() {
+        super(null, null, false, false);
+    }
+
     public abstract ErrorCode getErr();
 
     public abstract Pos getPos();
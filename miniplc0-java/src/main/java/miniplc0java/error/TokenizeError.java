@@ -1,5 +1,6 @@
 package miniplc0java.error;
 
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 public class TokenizeError extends CompileError {
@@ -9,6 +10,10 @@ public class TokenizeError extends CompileError {
     private ErrorCode err;
     private Pos pos;
 
+    // 只有报错信息真正被用到的时候才把偏移换算成行列号
+    private int offset;
+    private LineIndex lines;
+
     public TokenizeError(ErrorCode err, Pos pos) {
         super();
         this.err = err;
@@ -21,16 +26,31 @@ public class TokenizeError extends CompileError {
         this.pos = new Pos(row, col);
     }
 
+    /**
+     * @param err
+     * @param offset 出错字符在输入中的偏移
+     * @param lines  换算行列号用的行首表
+     */
+    public TokenizeError(ErrorCode err, int offset, LineIndex lines) {
+        super();
+        this.err = err;
+        this.offset = offset;
+        this.lines = lines;
+    }
+
     public ErrorCode getErr() {
         return err;
     }
 
     public Pos getPos() {
+        if (pos == null) {
+            pos = lines.toPos(offset);
+        }
         return pos;
     }
 
     @Override
     public String toString() {
-        return new StringBuilder().append("Tokenize Error: ").append(err).append(", at: ").append(pos).toString();
+        return new StringBuilder().append("Tokenize Error: ").append(err).append(", at: ").append(getPos()).toString();
     }
 }
@@ -0,0 +1,236 @@
+package miniplc0java.listing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Keywords;
+import miniplc0java.tokenizer.NameTable;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 输出文本形式的指令和 token 列表，和逐行 println(toString()) 的结果逐字节相同
+ *
+ * 操作码、token 类型和固定的文字事先编码成字节数组，整数直接按十进制写成 ASCII 数字，
+ * 都写进一个复用的直接缓冲区，攒满一块再整块写到通道里。输出到文件时通道就是文件的 FileChannel，
+ * 中间不经过 String、StringBuilder 和 PrintStream 的编码器，每一行都不分配对象。
+ *
+ * 和 PrintStream 一样不抛出 IOException，出错以后后面的输出都丢掉，用 checkError() 查询
+ */
+public final class ListingWriter implements Consumer<Instruction> {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    /** 一行里除了名字以外最长的部分，写之前先保证缓冲区里留着这么多 */
+    private static final int LINE_RESERVE = 128;
+
+    // PrintStream 用默认字符集编码，这里也一样
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final byte[] NEWLINE = encode(System.lineSeparator());
+    private static final byte[] LINE = encode("Line: ");
+    private static final byte[] COLUMN = encode(" Column: ");
+    private static final byte[] TYPE = encode(" Type: ");
+    private static final byte[] VALUE = encode(" Value: ");
+    private static final byte[][] OPERATIONS;
+    private static final byte[][] TOKEN_TYPES;
+    private static final byte[][] KEYWORDS;
+    private static final TokenType[] TYPES = TokenType.values();
+
+    static {
+        var operations = Operation.values();
+        OPERATIONS = new byte[operations.length][];
+        for (var op : operations) {
+            OPERATIONS[op.ordinal()] = encode(op.toString());
+        }
+        TOKEN_TYPES = new byte[TYPES.length][];
+        for (var type : TYPES) {
+            TOKEN_TYPES[type.ordinal()] = encode(type.toString());
+        }
+        KEYWORDS = new byte[TYPES.length][];
+        for (var type : new TokenType[] { TokenType.Begin, TokenType.End, TokenType.Var, TokenType.Const,
+                TokenType.Print }) {
+            KEYWORDS[type.ordinal()] = encode(Keywords.text(type));
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    /** 整数的数字从后往前写在这里 */
+    private final byte[] digits = new byte[11];
+    /** 编码过的标识符，下标是 NameTable 中的编号 */
+    private byte[][] names = new byte[64][];
+    private NameTable nameTable = null;
+    private boolean error = false;
+
+    /**
+     * @param channel 输出到文件时传文件的 FileChannel
+     */
+    public ListingWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public ListingWriter(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    @Override
+    public void accept(Instruction instruction) {
+        instruction(instruction.getOpt(), instruction.getX());
+    }
+
+    /**
+     * 写一条指令，和 new Instruction(op, x).toString() 相同
+     */
+    public void instruction(Operation op, int x) {
+        reserve(LINE_RESERVE);
+        buffer.put(OPERATIONS[op.ordinal()]);
+        if (op == Operation.LIT || op == Operation.LOD || op == Operation.STO) {
+            buffer.put((byte) ' ');
+            putInt(x);
+        }
+        buffer.put(NEWLINE);
+    }
+
+    /**
+     * 写 tokens 中的 [from, to)，每个都和 tokens.toToken(i).toString() 相同
+     */
+    public void tokens(TokenBuffer tokens, int from, int to) {
+        var lines = tokens.getLineIndex();
+        for (int i = from; i < to; i++) {
+            var type = tokens.type(i);
+            int start = tokens.start(i);
+            int line = lines.line(start);
+            reserve(LINE_RESERVE);
+            buffer.put(LINE);
+            putInt(line);
+            buffer.put(COLUMN);
+            putInt(start - lines.lineStart(line));
+            buffer.put(TYPE);
+            buffer.put(TOKEN_TYPES[type.ordinal()]);
+            buffer.put(VALUE);
+            switch (type) {
+                case Uint:
+                    putInt(tokens.value(i));
+                    break;
+                case Ident:
+                    putBytes(name(tokens.getNameTable(), tokens.value(i)));
+                    break;
+                case Begin:
+                case End:
+                case Var:
+                case Const:
+                case Print:
+                    buffer.put(KEYWORDS[type.ordinal()]);
+                    break;
+                case EOF:
+                    break;
+                default:
+                    putChar((char) tokens.value(i));
+                    break;
+            }
+            buffer.put(NEWLINE);
+        }
+    }
+
+    /**
+     * 把缓冲区里的内容写出去
+     */
+    public void flush() {
+        buffer.flip();
+        try {
+            while (!error && buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            error = true;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return 写出的时候有没有出过错
+     */
+    public boolean checkError() {
+        return error;
+    }
+
+    private void reserve(int length) {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void putInt(int x) {
+        int p = digits.length;
+        // 按负数算，Integer.MIN_VALUE 也不会溢出
+        int n = x < 0 ? x : -x;
+        do {
+            int q = n / 10;
+            digits[--p] = (byte) ('0' + q * 10 - n);
+            n = q;
+        } while (n != 0);
+        if (x < 0) {
+            buffer.put((byte) '-');
+        }
+        buffer.put(digits, p, digits.length - p);
+    }
+
+    private void putChar(char c) {
+        if (c < 0x80) {
+            buffer.put((byte) c);
+        } else {
+            putBytes(encode(String.valueOf(c)));
+        }
+    }
+
+    /**
+     * 写可能很长的字节，放不下时先写出去
+     */
+    private void putBytes(byte[] bytes) {
+        if (buffer.remaining() < bytes.length + LINE_RESERVE) {
+            flush();
+            if (bytes.length + LINE_RESERVE > BLOCK_SIZE) {
+                write(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void write(ByteBuffer bytes) {
+        try {
+            while (!error && bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    /**
+     * 每个名字只编码一次
+     */
+    private byte[] name(NameTable table, int id) {
+        if (table != nameTable) {
+            nameTable = table;
+            Arrays.fill(names, null);
+        }
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+        }
+        if (names[id] == null) {
+            names[id] = encode(table.name(id));
+        }
+        return names[id];
+    }
+
+    private static byte[] encode(String s) {
+        return s.getBytes(CHARSET);
+    }
+}
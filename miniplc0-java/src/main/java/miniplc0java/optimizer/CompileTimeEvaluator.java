@@ -0,0 +1,108 @@
+package miniplc0java.optimizer;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 作为 Analyser 的 sink，边分析边执行程序，只输出每次 WRT 的结果
+ *
+ * 程序没有输入也没有跳转，所有输出的值在编译时都能算出来。这里按 MiniVm 的规则执行收到的指令：
+ * int 运算溢出回绕、整除向零取整，每个 WRT 换成 LIT v, WRT。
+ * 运行时会出错的指令（除以 0、读写不存在的栈位置）换成几条在 MiniVm 上抛出同样异常的指令，
+ * 之后的指令运行时不会执行，全部丢掉
+ */
+public class CompileTimeEvaluator implements Consumer<Instruction> {
+    private final Consumer<Instruction> downstream;
+
+    private int[] stack = new int[64];
+    private int depth = 0;
+
+    /** 已经输出了会出错的指令 */
+    private boolean failed = false;
+
+    /**
+     * @param downstream 输出的指令交给谁
+     */
+    public CompileTimeEvaluator(Consumer<Instruction> downstream) {
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void accept(Instruction instruction) {
+        if (failed) {
+            return;
+        }
+        int x = instruction.getX();
+        switch (instruction.getOpt()) {
+            case LIT:
+                push(x);
+                break;
+            case LOD:
+                if (x < 0 || x >= depth) {
+                    // 栈上垫上同样多的值，让 MiniVm 报同样的越界
+                    fail(depth, instruction);
+                    return;
+                }
+                push(stack[x]);
+                break;
+            case STO:
+                if (x < 0 || x >= depth - 1) {
+                    fail(depth, instruction);
+                    return;
+                }
+                stack[x] = stack[--depth];
+                break;
+            case ADD:
+                depth--;
+                stack[depth - 1] += stack[depth];
+                break;
+            case SUB:
+                depth--;
+                stack[depth - 1] -= stack[depth];
+                break;
+            case MUL:
+                depth--;
+                stack[depth - 1] *= stack[depth];
+                break;
+            case DIV:
+                if (stack[depth - 1] == 0) {
+                    fail(2, instruction);
+                    return;
+                }
+                depth--;
+                stack[depth - 1] /= stack[depth];
+                break;
+            case WRT:
+                downstream.accept(new Instruction(Operation.LIT, stack[--depth]));
+                downstream.accept(new Instruction(Operation.WRT));
+                break;
+            default:
+                // ILL 之类的指令原样交给 MiniVm 去处理
+                fail(0, instruction);
+                break;
+        }
+    }
+
+    /**
+     * 输出 count 个 LIT 0 和出错的那条指令
+     *
+     * 除以 0 时是 LIT 0, LIT 0, DIV
+     */
+    private void fail(int count, Instruction instruction) {
+        for (int i = 0; i < count; i++) {
+            downstream.accept(new Instruction(Operation.LIT, 0));
+        }
+        downstream.accept(instruction);
+        failed = true;
+    }
+
+    private void push(int value) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = value;
+    }
+}
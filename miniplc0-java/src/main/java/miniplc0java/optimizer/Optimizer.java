@@ -0,0 +1,53 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 在分析和输出/执行之间，按顺序对指令序列执行若干遍优化
+ */
+public class Optimizer {
+    private final List<Pass> passes = new ArrayList<>();
+
+    private int removed = 0;
+
+    /**
+     * @return 默认的优化：窥孔优化
+     */
+    public static Optimizer standard() {
+        return new Optimizer().add(new PeepholePass());
+    }
+
+    /**
+     * 在最后加上一遍优化
+     *
+     * @param pass
+     * @return this
+     */
+    public Optimizer add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+
+    /**
+     * @param instructions 输入的指令序列，不会被修改
+     * @return 优化后的指令序列
+     */
+    public List<Instruction> optimize(List<Instruction> instructions) {
+        var result = instructions;
+        for (var pass : passes) {
+            result = pass.run(result);
+        }
+        removed += instructions.size() - result.size();
+        return result;
+    }
+
+    /**
+     * @return 到目前为止一共少了多少条指令
+     */
+    public int getRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,16 @@
+package miniplc0java.optimizer;
+
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 对指令序列做的一遍优化
+ */
+public interface Pass {
+    /**
+     * @param instructions 输入的指令序列，不会被修改
+     * @return 优化后的指令序列，执行的结果必须和原来完全一样
+     */
+    List<Instruction> run(List<Instruction> instructions);
+}
@@ -0,0 +1,207 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 窥孔优化：常量折叠、消去双重取负、化简 x*1、1*x、x+0、0+x、x-0、x/1
+ *
+ * 从前往后扫描一遍，对栈上的每个值记下算出它的是哪一段指令。两个操作数的指令段紧挨着、
+ * 并且在已经输出的指令的末尾时，才把这一段换成更短的等价指令，栈的深度不变，LOD/STO 的地址也不用改。
+ * 去掉左边的常量（0+x、1*x、0-(0-x)）会让 x 在栈上的位置下移，x 里面如果有 LOD 读到了那个常量的位置或者更高
+ * （读的是临时值而不是变量），就不做这个化简。
+ * 运算按 Java 的 int 运算进行，溢出回绕和整除的结果都和 MiniVm 一样；除数为 0 的除法不折叠，留到运行时报错
+ */
+public class PeepholePass implements Pass {
+    /** 一段指令算出的是什么值 */
+    private static final byte OTHER = 0;
+    private static final byte CONST = 1;
+    /** LIT 0, x..., SUB */
+    private static final byte NEGATE = 2;
+
+    // 栈上每个值对应的指令段 [start, end)，start 为 -1 表示不是连续的一段
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private byte[] kinds = new byte[64];
+    private int[] values = new int[64];
+    // 这段指令里的 LOD 读到的最高的栈位置，没有 LOD 时是 -1
+    private int[] reads = new int[64];
+    private int depth;
+
+    private ArrayList<Instruction> out;
+
+    @Override
+    public List<Instruction> run(List<Instruction> instructions) {
+        out = new ArrayList<>(instructions.size());
+        depth = 0;
+        int i = 0;
+        for (; i < instructions.size(); i++) {
+            if (!step(instructions.get(i))) {
+                break;
+            }
+        }
+        // 不认识的指令或者栈不够弹了，后面原样保留
+        out.addAll(instructions.subList(i, instructions.size()));
+        var result = out;
+        out = null;
+        return result;
+    }
+
+    /**
+     * 处理一条指令
+     *
+     * @return 能不能继续跟踪栈上的值
+     */
+    private boolean step(Instruction instruction) {
+        switch (instruction.getOpt()) {
+            case LIT:
+                push(out.size(), out.size() + 1, CONST, instruction.getX(), -1);
+                out.add(instruction);
+                return true;
+            case LOD:
+                push(out.size(), out.size() + 1, OTHER, 0, instruction.getX());
+                out.add(instruction);
+                return true;
+            case STO: {
+                if (depth < 1) {
+                    return false;
+                }
+                depth--;
+                // 被覆盖的那个位置上原来的值不再是那段指令算出来的了
+                int slot = instruction.getX();
+                if (slot >= 0 && slot < depth) {
+                    starts[slot] = -1;
+                    kinds[slot] = OTHER;
+                }
+                out.add(instruction);
+                return true;
+            }
+            case WRT:
+                if (depth < 1) {
+                    return false;
+                }
+                depth--;
+                out.add(instruction);
+                return true;
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                if (depth < 2) {
+                    return false;
+                }
+                binary(instruction);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void binary(Instruction instruction) {
+        var op = instruction.getOpt();
+        int b = depth - 1;
+        int a = depth - 2;
+        boolean bAtEnd = starts[b] >= 0 && ends[b] == out.size();
+        boolean adjacent = bAtEnd && starts[a] >= 0 && ends[a] == starts[b];
+        depth -= 2;
+
+        if (adjacent && kinds[a] == CONST && kinds[b] == CONST && !(op == Operation.DIV && values[b] == 0)) {
+            // 常量折叠
+            int value = fold(op, values[a], values[b]);
+            truncate(starts[a]);
+            push(out.size(), out.size() + 1, CONST, value, -1);
+            out.add(new Instruction(Operation.LIT, value));
+            return;
+        }
+
+        if (bAtEnd && kinds[b] == CONST && isRightIdentity(op, values[b])) {
+            // x+0、x-0、x*1、x/1：去掉右边的常量，不输出运算
+            truncate(starts[b]);
+            depth++;
+            return;
+        }
+
+        // x 没有读 a 和它上面的临时值时，才能把 x 往下移
+        boolean movable = reads[b] < a;
+        if (adjacent && movable && kinds[a] == CONST && isLeftIdentity(op, values[a])) {
+            // 0+x、1*x：去掉左边的常量
+            int start = starts[a];
+            out.remove(start);
+            push(start, ends[b] - 1, kinds[b], values[b], reads[b]);
+            return;
+        }
+
+        if (adjacent && op == Operation.SUB && kinds[a] == CONST && values[a] == 0) {
+            if (movable && kinds[b] == NEGATE) {
+                // 0 - (0 - x) = x：去掉两个 LIT 0 和里面的 SUB
+                var inner = new ArrayList<>(out.subList(starts[b] + 1, ends[b] - 1));
+                int start = starts[a];
+                truncate(start);
+                out.addAll(inner);
+                push(start, out.size(), OTHER, 0, reads[b]);
+                return;
+            }
+            push(starts[a], out.size() + 1, NEGATE, 0, reads[b]);
+            out.add(instruction);
+            return;
+        }
+
+        push(adjacent ? starts[a] : -1, out.size() + 1, OTHER, 0, Math.max(reads[a], reads[b]));
+        out.add(instruction);
+    }
+
+    private static int fold(Operation op, int a, int b) {
+        switch (op) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            case MUL:
+                return a * b;
+            default:
+                return a / b;
+        }
+    }
+
+    private static boolean isRightIdentity(Operation op, int value) {
+        switch (op) {
+            case ADD:
+            case SUB:
+                return value == 0;
+            case MUL:
+            case DIV:
+                return value == 1;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isLeftIdentity(Operation op, int value) {
+        return op == Operation.ADD && value == 0 || op == Operation.MUL && value == 1;
+    }
+
+    private void truncate(int size) {
+        out.subList(size, out.size()).clear();
+    }
+
+    private void push(int start, int end, byte kind, int value, int read) {
+        if (depth == starts.length) {
+            int capacity = depth * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            kinds = Arrays.copyOf(kinds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            reads = Arrays.copyOf(reads, capacity);
+        }
+        starts[depth] = start;
+        ends[depth] = end;
+        kinds[depth] = kind;
+        values[depth] = value;
+        reads[depth] = read;
+        depth++;
+    }
+}
@@ -0,0 +1,142 @@
+package miniplc0java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import miniplc0java.App;
+
+/**
+ * 把命令行原样交给 CompileServer 执行，输出和退出码和在本进程里执行时一样
+ *
+ * 连不上服务器时直接在本进程里执行，评测的命令行前面加上 --client 以后总是能用。
+ * 口令从服务器写的口令文件里读，没有这个文件说明自己没有在这个端口上启动服务器，也在本地执行；
+ * 文件里记的服务器进程已经不在了时，删掉这个文件，也在本地执行，不把工作目录和参数发给后来占了这个端口的程序。
+ * 服务器太忙时回复 BUSY，同样在本地执行
+ */
+public final class CompileClient {
+    private CompileClient() {
+    }
+
+    /**
+     * --client [--port N] 其他参数...
+     *
+     * @return 退出码
+     */
+    public static int run(String[] args, Path cwd, InputStream stdin, PrintStream stdout, PrintStream stderr) {
+        return run(args, CompileServer.defaultDirectory(), cwd, stdin, stdout, stderr);
+    }
+
+    /**
+     * @param directory 服务器放口令文件的目录
+     */
+    public static int run(String[] args, Path directory, Path cwd, InputStream stdin, PrintStream stdout,
+            PrintStream stderr) {
+        int port = CompileServer.DEFAULT_PORT;
+        if (args.length >= 1 && args[0].equals("--port")) {
+            port = args.length >= 2 ? CompileServer.parsePort(args[1]) : -1;
+            if (port < 0) {
+                stderr.println("usage: miniplc0-java --client [--port N] arguments...");
+                return 3;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        var tokenFile = CompileServer.tokenFile(directory, port);
+        String token;
+        try {
+            token = CompileServer.readToken(tokenFile);
+        } catch (NoSuchFileException e) {
+            return App.run(args, cwd, stdin, stdout, stderr);
+        } catch (IOException e) {
+            stderr.println("Cannot read the compile server token: " + e);
+            return 2;
+        }
+        if (token == null) {
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException e) {
+                // 下次服务器启动时会删掉
+            }
+            return App.run(args, cwd, stdin, stdout, stderr);
+        }
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (ConnectException e) {
+            return App.run(args, cwd, stdin, stdout, stderr);
+        } catch (IOException e) {
+            stderr.println("Cannot connect to the compile server: " + e);
+            return 2;
+        }
+
+        try (socket;
+                var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            out.writeInt(CompileServer.MAGIC);
+            out.writeUTF(token);
+            out.writeUTF(cwd.toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (var arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            var buffer = new byte[1 << 16];
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                switch (type) {
+                    case CompileServer.STDOUT:
+                    case CompileServer.STDERR:
+                        var target = type == CompileServer.STDOUT ? stdout : stderr;
+                        while (length > 0) {
+                            int n = Math.min(length, buffer.length);
+                            in.readFully(buffer, 0, n);
+                            target.write(buffer, 0, n);
+                            length -= n;
+                        }
+                        break;
+                    case CompileServer.STDIN:
+                        int n = stdin.read(buffer, 0, Math.min(length, buffer.length));
+                        out.writeInt(n);
+                        if (n > 0) {
+                            out.write(buffer, 0, n);
+                        }
+                        out.flush();
+                        break;
+                    case CompileServer.EXIT:
+                        stdout.flush();
+                        stderr.flush();
+                        return length;
+                    case CompileServer.BUSY:
+                        // 还没有读过标准输入，也没有输出过任何东西
+                        return App.run(args, cwd, stdin, stdout, stderr);
+                    default:
+                        stderr.println("Unexpected reply from the compile server.");
+                        return 2;
+                }
+            }
+        } catch (EOFException e) {
+            stderr.println("The compile server closed the connection.");
+            return 2;
+        } catch (IOException e) {
+            stderr.println("Lost the connection to the compile server: " + e);
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package miniplc0java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import miniplc0java.App;
+
+/**
+ * 常驻的编译服务器，省掉每次编译都要付出的 JVM 启动、类加载和 JIT 预热
+ *
+ * 只监听 127.0.0.1 上的 TCP 端口。每个连接是一次命令行：客户端发来工作目录和参数，
+ * 服务器在自己的线程里调用 App.run()，标准输出、标准错误和退出码按帧发回去，
+ * 需要读标准输入时再向客户端要。输入输出文件由服务器按客户端的工作目录直接读写。
+ *
+ * 服务器以启动它的用户的权限读写任意文件，所以同一台机器上的其他用户不能用它：
+ * 启动时生成一个随机的口令，写到用户目录下只有自己能读的文件里（~/.miniplc0-java/server-端口.token，
+ * 目录 0700，文件 0600），每个请求都要带上这个口令，不对的直接拒绝。口令文件里还记着服务器的进程号和
+ * 启动时间，服务器被 kill -9 以后留下的文件，客户端发现进程不在了就不再用它（端口可能已经被别的程序占了），
+ * 服务器启动时也会删掉这样的文件。
+ *
+ * 同时处理的连接最多 MAX_WORKERS 个，再来的连接收到 BUSY，客户端改在本地执行；
+ * 连上以后要在 HANDSHAKE_TIMEOUT 毫秒内发完 MAGIC 和口令，不发的连接不会一直占着线程。
+ *
+ * 请求：MAGIC、口令、工作目录、参数个数和参数。
+ * 回复的帧：一个字节的类型，后面是 int 长度和内容（EXIT 是退出码，STDIN 是最多要多少字节，BUSY 没有内容）
+ */
+public final class CompileServer implements Closeable {
+    public static final int DEFAULT_PORT = 7359;
+
+    /** 请求的开头 "mpl0" */
+    static final int MAGIC = 0x6d706c30;
+
+    static final byte STDOUT = 'O';
+    static final byte STDERR = 'E';
+    static final byte STDIN = 'I';
+    static final byte EXIT = 'X';
+    static final byte BUSY = 'B';
+
+    static final int MAX_WORKERS = 16;
+    static final int HANDSHAKE_TIMEOUT = 5000;
+
+    private final ServerSocket socket;
+    private final Path tokenFile;
+    private final byte[] token;
+    private final int handshakeTimeout;
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @param port 端口，0 表示随便找一个空闲的
+     * @throws IOException
+     */
+    public CompileServer(int port) throws IOException {
+        this(port, defaultDirectory());
+    }
+
+    /**
+     * @param port      端口，0 表示随便找一个空闲的
+     * @param directory 口令文件放在哪个目录
+     * @throws IOException 端口被占用，或者写不了口令文件
+     */
+    public CompileServer(int port, Path directory) throws IOException {
+        this(port, directory, MAX_WORKERS, HANDSHAKE_TIMEOUT);
+    }
+
+    /**
+     * @param maxWorkers       最多同时处理几个连接
+     * @param handshakeTimeout 连上以后多少毫秒内要发完 MAGIC 和口令
+     */
+    public CompileServer(int port, Path directory, int maxWorkers, int handshakeTimeout) throws IOException {
+        this.handshakeTimeout = handshakeTimeout;
+        // 不排队：线程都忙的时候 execute() 直接拒绝
+        workers = new ThreadPoolExecutor(0, maxWorkers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            var thread = new Thread(runnable, "compile-server-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        var random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        var sb = new StringBuilder();
+        for (byte b : random) {
+            sb.append(String.format("%02x", b));
+        }
+        token = sb.toString().getBytes(StandardCharsets.UTF_8);
+        tokenFile = tokenFile(directory, getPort());
+        try {
+            writeToken(directory);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 默认放口令文件的目录，~/.miniplc0-java
+     */
+    public static Path defaultDirectory() {
+        return Path.of(System.getProperty("user.home"), ".miniplc0-java");
+    }
+
+    /**
+     * @return 监听 port 的服务器的口令文件
+     */
+    static Path tokenFile(Path directory, int port) {
+        return directory.resolve("server-" + port + ".token");
+    }
+
+    /**
+     * 读口令文件
+     *
+     * @return 口令，写它的服务器进程已经不在了，或者文件的格式不对时返回 null
+     * @throws NoSuchFileException 没有这个文件
+     */
+    static String readToken(Path file) throws IOException {
+        var lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.size() < 3) {
+            return null;
+        }
+        try {
+            return running(Long.parseLong(lines.get(1)), Long.parseLong(lines.get(2))) ? lines.get(0) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param start 进程的启动时间（毫秒），-1 表示不知道
+     * @return 这个进程是否还在运行，进程号被别的进程重用了也算不在
+     */
+    private static boolean running(long pid, long start) {
+        var process = ProcessHandle.of(pid);
+        if (process.isEmpty() || !process.get().isAlive()) {
+            return false;
+        }
+        return start < 0 || process.get().info().startInstant().map(i -> i.toEpochMilli() == start).orElse(true);
+    }
+
+    /**
+     * 删掉进程已经不在了的服务器留下的口令文件
+     */
+    private static void deleteStaleTokens(Path directory) throws IOException {
+        try (var files = Files.newDirectoryStream(directory, "server-*.token")) {
+            for (var file : files) {
+                try {
+                    if (readToken(file) == null) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    // 可能正被别的服务器替换，不管它
+                }
+            }
+        }
+    }
+
+    /**
+     * 先写到一个只有自己能读写的临时文件里，再换成正式的名字，别人在任何时候都读不到口令
+     */
+    private void writeToken(Path directory) throws IOException {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(directory,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            // 目录可能是以前别的方式建的
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        } else {
+            // 没有 POSIX 权限的系统上靠用户目录本身的权限
+            Files.createDirectories(directory);
+        }
+        deleteStaleTokens(directory);
+        var self = ProcessHandle.current();
+        long start = self.info().startInstant().map(i -> i.toEpochMilli()).orElse(-1L);
+        var content = new String(token, StandardCharsets.UTF_8) + "\n" + self.pid() + "\n" + start + "\n";
+        var temporary = posix
+                ? Files.createTempFile(directory, "server-", ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(directory, "server-", ".tmp");
+        try {
+            Files.writeString(temporary, content, StandardCharsets.UTF_8);
+            Files.move(temporary, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * --server [--port N]
+     *
+     * @return 退出码，正常情况下不会返回
+     */
+    public static int main(String[] args, PrintStream log) {
+        int port = DEFAULT_PORT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length && parsePort(args[i + 1]) >= 0) {
+                port = parsePort(args[++i]);
+            } else {
+                log.println("usage: miniplc0-java --server [--port N]");
+                return 3;
+            }
+        }
+        try (var server = new CompileServer(port)) {
+            server.warmUp();
+            log.println("Listening on " + server.socket.getLocalSocketAddress() + ".");
+            server.serve();
+        } catch (IOException e) {
+            log.println("Cannot start the compile server: " + e);
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * @return 端口号，不是 0 到 65535 之间的整数时返回 -1
+     */
+    static int parsePort(String text) {
+        try {
+            int port = Integer.parseInt(text);
+            return port >= 0 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * 先把一段程序反复编译几遍，让第一个请求就用上 JIT 编译过的 Tokenizer 和 Analyser
+     */
+    public void warmUp() {
+        var sb = new StringBuilder("begin\nvar a = 1;\nvar b;\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("b = (a + ").append(i).append(") * -b / (a - 2);\na = a * 3 + b;\nprint(a);\n");
+        }
+        sb.append("end\n");
+        var source = sb.toString().getBytes(StandardCharsets.UTF_8);
+        var sink = new PrintStream(OutputStream.nullOutputStream());
+        for (int i = 0; i < 300; i++) {
+            var mode = i % 2 == 0 ? "-t" : "-l";
+            App.run(new String[] { mode, "-o", "-", "-" }, Path.of(""), new ByteArrayInputStream(source), sink, sink);
+        }
+    }
+
+    /**
+     * 接受连接，直到 close()
+     */
+    public void serve() throws IOException {
+        while (true) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (SocketException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            try {
+                workers.execute(() -> handle(client));
+            } catch (RejectedExecutionException e) {
+                busy(client);
+            }
+        }
+    }
+
+    /**
+     * 线程都忙着，让客户端自己在本地执行
+     */
+    private static void busy(Socket client) {
+        try (client; var out = new DataOutputStream(client.getOutputStream())) {
+            out.writeByte(BUSY);
+            out.writeInt(0);
+            out.flush();
+        } catch (IOException e) {
+            // 客户端已经走了
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        workers.shutdown();
+        Files.deleteIfExists(tokenFile);
+    }
+
+    private void handle(Socket client) {
+        try (client;
+                var in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                var out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            client.setTcpNoDelay(true);
+            // 握手超时，只连不发的连接到时间就关掉
+            client.setSoTimeout(handshakeTimeout);
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            if (!MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                var message = "The compile server rejected the request: wrong token.\n".getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STDERR);
+                out.writeInt(message.length);
+                out.write(message);
+                out.writeByte(EXIT);
+                out.writeInt(2);
+                out.flush();
+                return;
+            }
+            // 通过了验证，编译和读标准输入要多久都可以
+            client.setSoTimeout(0);
+            var cwd = Path.of(in.readUTF());
+            var args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            var stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), 1 << 16));
+            var stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR)), true);
+            int code = 1;
+            try {
+                code = App.run(args, cwd, new RemoteInputStream(in, out), stdout, stderr);
+            } catch (RuntimeException | StackOverflowError e) {
+                // 单独运行时 JVM 会打印出来然后以 1 退出
+                e.printStackTrace(stderr);
+                code = 1;
+            } finally {
+                // 其他 Error 也要告诉客户端这次结束了，不能让它一直等
+                stdout.flush();
+                stderr.flush();
+                synchronized (out) {
+                    out.writeByte(EXIT);
+                    out.writeInt(code);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开了，这次的结果没人要了
+        }
+    }
+
+    /**
+     * 把写进来的内容按帧发给客户端
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameOutputStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * 读的时候才向客户端要标准输入，客户端回一个长度和内容，长度是 -1 表示读完了
+     */
+    private static final class RemoteInputStream extends InputStream {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private boolean eof = false;
+
+        RemoteInputStream(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (eof) {
+                return -1;
+            }
+            synchronized (out) {
+                out.writeByte(STDIN);
+                out.writeInt(len);
+                out.flush();
+            }
+            int n = in.readInt();
+            if (n < 0) {
+                eof = true;
+                return -1;
+            }
+            in.readFully(b, off, n);
+            return n;
+        }
+    }
+}
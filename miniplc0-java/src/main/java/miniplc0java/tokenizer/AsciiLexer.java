@@ -0,0 +1,180 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
+
+/**
+ * 只处理 ASCII 输入的词法分析器
+ *
+ * 直接在字节数组上扫描，用一张 128 项的表给字符分类，整数边读边算。
+ * 空白、数字和标识符的连续段交给 ByteRuns 一次找到结尾。
+ * 一旦碰到非 ASCII 的字节就停下来，由 Tokenizer 换成 StringIter 的 Unicode 版本继续分析
+ */
+final class AsciiLexer {
+    static final byte OTHER = 0;
+    static final byte SPACE = 1;
+    static final byte DIGIT = 2;
+    static final byte ALPHA = 3;
+    static final byte OPERATOR = 4;
+
+    /** ASCII 字符的分类，和 Character.isWhitespace/isDigit/isAlphabetic 在 ASCII 范围内的结果一致 */
+    static final byte[] CLASS = new byte[128];
+
+    static {
+        for (char c : "\t\n\u000B\f\r\u001C\u001D\u001E\u001F ".toCharArray()) {
+            CLASS[c] = SPACE;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASS[c] = DIGIT;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASS[c] = ALPHA;
+            CLASS[c - 'a' + 'A'] = ALPHA;
+        }
+        for (char c : "+-*/;()=".toCharArray()) {
+            CLASS[c] = OPERATOR;
+        }
+    }
+
+    private final byte[] src;
+    private final int length;
+    private final NameTable names;
+    private final LineIndex lines;
+
+    // 下一个要读取的字节
+    private int pos;
+
+    AsciiLexer(byte[] src, int length, NameTable names) {
+        this(src, 0, length, names, new LineIndex(src, length));
+    }
+
+    /**
+     * 只分析 src[from, to)，位置仍然是在整个输入中的偏移（并行分析时每一块用一个）
+     *
+     * to 不是输入的结尾，或者 from 之前有非 ASCII 字节时，不能调用 fallback()
+     */
+    AsciiLexer(byte[] src, int from, int to, NameTable names, LineIndex lines) {
+        this.src = src;
+        this.pos = from;
+        this.length = to;
+        this.names = names;
+        this.lines = lines;
+    }
+
+    LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * 读取下一个 token 追加到 out 的末尾
+     *
+     * @return 如果碰到了非 ASCII 字节则返回 false，什么也不追加，此时指针停在这个 token 的开头
+     * @throws TokenizeError
+     */
+    boolean next(TokenBuffer out) throws TokenizeError {
+        int p = ByteRuns.skipSpaces(src, pos, length);
+        pos = p;
+
+        if (p >= length) {
+            out.add(TokenType.EOF, p, p, 0);
+            return true;
+        }
+
+        int b = src[p];
+        if (b < 0) {
+            return false;
+        }
+        switch (CLASS[b]) {
+            case DIGIT:
+                return lexUInt(p, out);
+            case ALPHA:
+                return lexIdentOrKeyword(p, out);
+            default:
+                lexOperatorOrUnknown(p, (char) b, out);
+                return true;
+        }
+    }
+
+    private boolean lexUInt(int start, TokenBuffer out) throws TokenizeError {
+        int end = ByteRuns.digitRunEnd(src, start, length);
+        if (end < length && src[end] < 0) {
+            // 可能是别的数字字符，从头交给 Unicode 版本
+            return false;
+        }
+        int value = 0;
+        boolean overflow = false;
+        for (int p = start; p < end; p++) {
+            int digit = src[p] - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                overflow = true;
+            } else {
+                value = value * 10 + digit;
+            }
+        }
+        pos = end;
+        if (overflow) {
+            throw new TokenizeError(ErrorCode.IntegerOverflow, start, lines);
+        }
+        out.add(TokenType.Uint, start, end, value);
+        return true;
+    }
+
+    private boolean lexIdentOrKeyword(int start, TokenBuffer out) {
+        int end = ByteRuns.alnumRunEnd(src, start, length);
+        if (end < length && src[end] < 0) {
+            return false;
+        }
+        pos = end;
+        var keyWord = Keywords.lookup(src, start, end);
+        if (keyWord != null) {
+            out.add(keyWord, start, end, 0);
+        } else {
+            out.add(TokenType.Ident, start, end, names.intern(src, start, end));
+        }
+        return true;
+    }
+
+    private void lexOperatorOrUnknown(int start, char ch, TokenBuffer out) throws TokenizeError {
+        pos = start + 1;
+        switch (ch) {
+            case '+':
+                out.add(TokenType.Plus, start, pos, ch);
+                break;
+            case '-':
+                out.add(TokenType.Minus, start, pos, ch);
+                break;
+            case '*':
+                out.add(TokenType.Mult, start, pos, ch);
+                break;
+            case '/':
+                out.add(TokenType.Div, start, pos, ch);
+                break;
+            case ';':
+                out.add(TokenType.Semicolon, start, pos, ch);
+                break;
+            case '(':
+                out.add(TokenType.LParen, start, pos, ch);
+                break;
+            case ')':
+                out.add(TokenType.RParen, start, pos, ch);
+                break;
+            case '=':
+                out.add(TokenType.Equal, start, pos, ch);
+                break;
+            default:
+                throw new TokenizeError(ErrorCode.InvalidInput, start, lines);
+        }
+    }
+
+    /**
+     * 换成 Unicode 版本：把整个输入解码，跳到当前位置继续
+     *
+     * 当前位置之前都是 ASCII，所以字节偏移和字符偏移是一样的
+     */
+    StringIter fallback() {
+        var iter = new StringIter(SourceReader.decode(src, length));
+        iter.seek(pos);
+        return iter;
+    }
+}
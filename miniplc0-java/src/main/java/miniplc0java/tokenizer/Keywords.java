@@ -0,0 +1,95 @@
+package miniplc0java.tokenizer;
+
+/**
+ * 关键字识别：先按长度、再按首字母分支，最多比较一个候选，不需要先构造 String 再查哈希表
+ */
+public final class Keywords {
+    private Keywords() {
+    }
+
+    /**
+     * @return buf[from, to) 对应的关键字类型，不是关键字则返回 null
+     */
+    static TokenType lookup(char[] buf, int from, int to) {
+        switch (to - from) {
+            case 3:
+                switch (buf[from]) {
+                    case 'e':
+                        return buf[from + 1] == 'n' && buf[from + 2] == 'd' ? TokenType.End : null;
+                    case 'v':
+                        return buf[from + 1] == 'a' && buf[from + 2] == 'r' ? TokenType.Var : null;
+                    default:
+                        return null;
+                }
+            case 5:
+                switch (buf[from]) {
+                    case 'b':
+                        return buf[from + 1] == 'e' && buf[from + 2] == 'g' && buf[from + 3] == 'i'
+                                && buf[from + 4] == 'n' ? TokenType.Begin : null;
+                    case 'c':
+                        return buf[from + 1] == 'o' && buf[from + 2] == 'n' && buf[from + 3] == 's'
+                                && buf[from + 4] == 't' ? TokenType.Const : null;
+                    case 'p':
+                        return buf[from + 1] == 'r' && buf[from + 2] == 'i' && buf[from + 3] == 'n'
+                                && buf[from + 4] == 't' ? TokenType.Print : null;
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 同上，输入是 ASCII 字节
+     */
+    static TokenType lookup(byte[] buf, int from, int to) {
+        switch (to - from) {
+            case 3:
+                switch (buf[from]) {
+                    case 'e':
+                        return buf[from + 1] == 'n' && buf[from + 2] == 'd' ? TokenType.End : null;
+                    case 'v':
+                        return buf[from + 1] == 'a' && buf[from + 2] == 'r' ? TokenType.Var : null;
+                    default:
+                        return null;
+                }
+            case 5:
+                switch (buf[from]) {
+                    case 'b':
+                        return buf[from + 1] == 'e' && buf[from + 2] == 'g' && buf[from + 3] == 'i'
+                                && buf[from + 4] == 'n' ? TokenType.Begin : null;
+                    case 'c':
+                        return buf[from + 1] == 'o' && buf[from + 2] == 'n' && buf[from + 3] == 's'
+                                && buf[from + 4] == 't' ? TokenType.Const : null;
+                    case 'p':
+                        return buf[from + 1] == 'r' && buf[from + 2] == 'i' && buf[from + 3] == 'n'
+                                && buf[from + 4] == 't' ? TokenType.Print : null;
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return 关键字的原文，作为 token 的值
+     */
+    public static String text(TokenType tokenType) {
+        switch (tokenType) {
+            case Begin:
+                return "begin";
+            case End:
+                return "end";
+            case Var:
+                return "var";
+            case Const:
+                return "const";
+            case Print:
+                return "print";
+            default:
+                throw new Error("Not a keyword: " + tokenType);
+        }
+    }
+}
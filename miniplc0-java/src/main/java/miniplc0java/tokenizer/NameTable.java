@@ -0,0 +1,138 @@
+package miniplc0java.tokenizer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 标识符表：每次编译一张，同一个名字只保存一份 String，并按出现顺序分配从 0 开始的连续编号
+ *
+ * 用开放地址法直接拿缓冲区里的字符查表，名字已经出现过的时候不分配任何对象，
+ * 后面的阶段可以只用编号来查符号
+ */
+public class NameTable {
+    // 存的是编号 + 1，0 表示这个槽是空的
+    private int[] slots = new int[64];
+    private String[] names = new String[32];
+    private int[] hashes = new int[32];
+    private int size = 0;
+
+    /**
+     * 查找或者加入 buf[from, to) 这个名字
+     *
+     * @return 名字的编号
+     */
+    public int intern(char[] buf, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + buf[i];
+        }
+        int mask = slots.length - 1;
+        for (int i = mix(h) & mask;; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return add(new String(buf, from, to - from), h, i);
+            }
+            int id = slot - 1;
+            if (hashes[id] == h && matches(names[id], buf, from, to)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 同上，buf[from, to) 必须全是 ASCII 字节
+     *
+     * @return 名字的编号
+     */
+    public int intern(byte[] buf, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + buf[i];
+        }
+        int mask = slots.length - 1;
+        for (int i = mix(h) & mask;; i = (i + 1) & mask) {
+            int slot = slots[i];
+            if (slot == 0) {
+                return add(new String(buf, from, to - from, StandardCharsets.ISO_8859_1), h, i);
+            }
+            int id = slot - 1;
+            if (hashes[id] == h && matches(names[id], buf, from, to)) {
+                return id;
+            }
+        }
+    }
+
+    public int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * @param id 名字的编号
+     * @return 名字
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return 一共有多少个不同的名字
+     */
+    public int size() {
+        return size;
+    }
+
+    private int add(String name, int h, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = h;
+        slots[slot] = size + 1;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = mix(hashes[id]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, char[] buf, int from, int to) {
+        if (name.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (name.charAt(i - from) != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String name, byte[] buf, int from, int to) {
+        if (name.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (name.charAt(i - from) != buf[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,191 @@
+package miniplc0java.tokenizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
+
+/**
+ * 把很大的输入切成几块，在 ForkJoinPool 上同时做词法分析
+ *
+ * token 里没有字符串和注释，所以任何一个空白字节都可以安全地切开。
+ * 每一块用自己的 AsciiLexer 和 NameTable，位置直接记成在整个输入中的偏移，
+ * 合并时按块的顺序把标识符编号换成全局编号，再按顺序拼起来，结果和顺序分析完全一样。
+ * 分析中遇到的错误记下它在 token 流中的位置，由 Tokenizer 读到那里的时候再抛出
+ */
+final class ParallelLexer {
+    /** 每一块至少这么大，否则不值得开线程 */
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    /** 合并后的全部 token，最后一个是 EOF */
+    final TokenBuffer tokens = new TokenBuffer();
+
+    /** errorAt[i] 是 errors[i] 之前有多少个 token */
+    int[] errorAt = new int[0];
+    TokenizeError[] errors = new TokenizeError[0];
+
+    /** 下一个要交出去的 token 和错误 */
+    private int cursor = 0;
+    private int nextError = 0;
+
+    private ParallelLexer() {
+    }
+
+    /**
+     * 并行分析整个输入
+     *
+     * @param src   输入
+     * @param length 输入的字节数
+     * @param jobs  最多用几个线程
+     * @param names 全局的标识符表
+     * @param lines 全局的行首表
+     * @return 分析结果；输入太小或者含有非 ASCII 字节时返回 null，由调用者顺序分析
+     */
+    static ParallelLexer lex(byte[] src, int length, int jobs, NameTable names, LineIndex lines) {
+        int count = Math.min(jobs, length / MIN_CHUNK_SIZE);
+        if (count < 2) {
+            return null;
+        }
+
+        var chunks = new ArrayList<Chunk>();
+        int from = 0;
+        for (int i = 1; i <= count && from < length; i++) {
+            int to = i == count ? length : splitPoint(src, (int) ((long) length * i / count), length);
+            chunks.add(new Chunk(src, from, to, to == length, lines));
+            from = to;
+        }
+
+        var pool = new ForkJoinPool(jobs);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(chunks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        for (var chunk : chunks) {
+            if (chunk.nonAscii) {
+                return null;
+            }
+        }
+        var result = new ParallelLexer();
+        for (var chunk : chunks) {
+            result.append(chunk, names);
+        }
+        result.tokens.names = names;
+        result.tokens.lines = lines;
+        return result;
+    }
+
+    /**
+     * 从 at 开始往后找第一个空白字节，找不到就是输入的结尾
+     */
+    private static int splitPoint(byte[] src, int at, int length) {
+        while (at < length && (src[at] < 0 || AsciiLexer.CLASS[src[at]] != AsciiLexer.SPACE)) {
+            at++;
+        }
+        return at;
+    }
+
+    /**
+     * 把一块的结果接到后面，标识符按这一块里第一次出现的顺序登记到全局表中
+     */
+    private void append(Chunk chunk, NameTable names) {
+        var local = chunk.names;
+        var remap = new int[local.size()];
+        for (int id = 0; id < remap.length; id++) {
+            remap[id] = names.intern(local.name(id));
+        }
+
+        int offset = tokens.size();
+        for (int i = 0; i < chunk.errorCount; i++) {
+            addError(offset + chunk.errorAt[i], chunk.errors[i]);
+        }
+
+        var buf = chunk.tokens;
+        for (int i = 0; i < buf.size(); i++) {
+            var type = buf.type(i);
+            if (type == TokenType.EOF && !chunk.last) {
+                continue;
+            }
+            int value = type == TokenType.Ident ? remap[buf.value(i)] : buf.value(i);
+            tokens.add(type, buf.start(i), buf.end(i), value);
+        }
+    }
+
+    private void addError(int at, TokenizeError error) {
+        int n = errors.length;
+        errorAt = Arrays.copyOf(errorAt, n + 1);
+        errors = Arrays.copyOf(errors, n + 1);
+        errorAt[n] = at;
+        errors[n] = error;
+    }
+
+    /**
+     * 按顺序交出下一个 token，追加到 out 的末尾；到了出错的位置就抛出错误
+     *
+     * 读完以后一直返回 EOF
+     */
+    void next(TokenBuffer out) throws TokenizeError {
+        if (nextError < errors.length && errorAt[nextError] == cursor) {
+            throw errors[nextError++];
+        }
+        int i = Math.min(cursor, tokens.size() - 1);
+        out.add(tokens.type(i), tokens.start(i), tokens.end(i), tokens.value(i));
+        if (cursor < tokens.size()) {
+            cursor++;
+        }
+    }
+
+    /**
+     * 一块输入的分析任务
+     */
+    private static final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final AsciiLexer lexer;
+        final NameTable names = new NameTable();
+        final TokenBuffer tokens = new TokenBuffer();
+        final boolean last;
+
+        boolean nonAscii = false;
+        int[] errorAt = new int[4];
+        TokenizeError[] errors = new TokenizeError[4];
+        int errorCount = 0;
+
+        Chunk(byte[] src, int from, int to, boolean last, LineIndex lines) {
+            this.lexer = new AsciiLexer(src, from, to, names, lines);
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            while (true) {
+                try {
+                    if (!lexer.next(tokens)) {
+                        nonAscii = true;
+                        return;
+                    }
+                    if (tokens.type(tokens.size() - 1) == TokenType.EOF) {
+                        return;
+                    }
+                } catch (TokenizeError e) {
+                    // 出错的字符已经跳过去了，记下来接着分析
+                    if (errorCount == errors.length) {
+                        errorAt = Arrays.copyOf(errorAt, errorCount * 2);
+                        errors = Arrays.copyOf(errors, errorCount * 2);
+                    }
+                    errorAt[errorCount] = tokens.size();
+                    errors[errorCount++] = e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package miniplc0java.tokenizer;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把输入解码成字符，交给 StringIter 使用
+ *
+ * 一次读完的输入由调用方用 Files.readAllBytes 或 InputStream.readAllBytes 读成字节数组，
+ * ASCII 的输入直接按字节分析，只有含非 ASCII 字符时才用 decode 整体解码一次；
+ * 流式读取时用 openStream 边读边解码
+ */
+public final class SourceReader {
+    /** 流式读取时每次读取的字节数 */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private SourceReader() {
+    }
+
+    /**
+     * 把已经读进来的字节解码，非法的 UTF-8 序列会被替换掉
+     *
+     * @param bytes  输入
+     * @param length 字节数
+     * @return 解码后的字符
+     */
+    public static CharBuffer decode(byte[] bytes, int length) {
+        return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    /**
+     * 不一次读完，而是把输入流包装成按需解码的 Reader，给流式的 StringIter 使用
+     *
+     * @param in 输入流
+     * @return 边读边解码的 Reader
+     */
+    public static Reader openStream(InputStream in) {
+        return Channels.newReader(Channels.newChannel(in), newDecoder(), CHUNK_SIZE);
+    }
+
+    private static CharsetDecoder newDecoder() {
+        return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
@@ -1,145 +1,236 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 import java.util.Scanner;
 
-import miniplc0java.util.Pos;
+import miniplc0java.util.LineIndex;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    /** 流式读取时窗口的默认大小 */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
 
+    // 扁平的字符缓冲区，整个输入只解码一次
+    // 流式读取时它是一个固定大小的窗口，读完了再从 source 补充
+    char[] buffer = new char[0];
+    int length = 0;
+
+    // 只有旧的按行读取的构造方式才会用到
     Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
 
-    Pos ptr = new Pos(0, 0);
+    // 只有流式读取才会用到，读完以后置为 null
+    Reader source;
 
-    boolean initialized = false;
+    // 指向下一个要读取的字符在缓冲区中的下标
+    int offset = 0;
+
+    // buffer[0] 在整个输入中的偏移，只有流式读取时才会变
+    int base = 0;
 
-    Optional<Character> peeked = Optional.empty();
+    // 偏移换算行列号用的行首表
+    LineIndex lines = new LineIndex();
+
+    boolean initialized = false;
 
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    /**
+     * @param source 已经解码好的输入，从 position 读到 limit
+     */
+    public StringIter(CharBuffer source) {
+        if (source.hasArray() && source.arrayOffset() + source.position() == 0) {
+            // 解码器给的缓冲区从 0 开始，直接拿来用，不再复制一份
+            this.buffer = source.array();
+            this.length = source.limit();
+        } else {
+            this.buffer = new char[source.remaining()];
+            source.duplicate().get(this.buffer);
+            this.length = this.buffer.length;
+        }
+        this.lines = new LineIndex(buffer, length);
+        this.initialized = true;
+    }
+
+    public StringIter(String source) {
+        this(CharBuffer.wrap(source.toCharArray()));
+    }
+
+    /**
+     * 流式读取：只在内存里保留一个固定大小的窗口，用到哪里读到哪里
+     *
+     * 窗口外的字符会丢掉，但是行首表要记下每一行，前面的 token 出错或者输出时还要换算它们的行列号，
+     * 所以内存占用是窗口大小加上 O(行数)
+     *
+     * @param source 输入
+     */
+    public StringIter(Reader source) {
+        this(source, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param source     输入
+     * @param windowSize 窗口大小，至少为 2（要给 unreadLast() 留一个字符）
+     */
+    public StringIter(Reader source, int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("window size too small");
+        }
+        this.source = source;
+        this.buffer = new char[windowSize];
+        this.initialized = true;
+    }
+
+    // 从这里开始其实是一个基于扁平缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
     // 1.缓冲区包括 \n
     // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    // 3.位置一律用字符在整个输入中的偏移表示，要行列号的时候再通过 getLineIndex() 换算
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 旧的构造方式：一次读入全部内容，并且替换所有换行为 \n
+    // 用新的构造方式时缓冲区已经准备好了，这里什么都不做
     public void readAll() {
         if (initialized) {
             return;
         }
+        var sb = new StringBuilder();
         while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+            sb.append(scanner.nextLine()).append('\n');
         }
-        // todo:check read \n?
+        this.buffer = sb.toString().toCharArray();
+        this.length = this.buffer.length;
+        this.lines = new LineIndex(buffer, length);
         initialized = true;
     }
 
+    /**
+     * 流式读取时，窗口读完了就把最后一个字符挪到开头，再读一批进来
+     *
+     * @return 是否读到了新的字符
+     */
+    private boolean fill() {
+        if (source == null) {
+            return false;
+        }
+        int keep = Math.min(offset, 1);
+        System.arraycopy(buffer, offset - keep, buffer, 0, length - offset + keep);
+        base += offset - keep;
+        length = length - offset + keep;
+        offset = keep;
+        try {
+            int n;
+            do {
+                n = source.read(buffer, length, buffer.length - length);
+            } while (n == 0);
+            if (n < 0) {
+                source.close();
+                source = null;
+                return false;
+            }
+            lines.scan(buffer, length, length + n);
+            length += n;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     // 一个简单的总结
-    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
-    // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
-    // 这里假设指针指向第一行的 \n，那么有
-    // nextPos() = (1, 0)
-    // currentPos() = (0, 9)
-    // previousPos() = (0, 8)
-    // nextChar() = '\n' 并且指针移动到 (1, 0)
-    // unreadLast() 指针移动到 (0, 8)
+    // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 10 | 11 | 偏移
+    // | = | = | = | = | = | = | = | = | = | = | == | == |
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n | 7  | 1  |
+    // 这里假设指针指向 \n，那么有
+    // nextPos() = 10
+    // currentPos() = 9
+    // previousPos() = 8
+    // nextChar() = '\n' 并且指针移动到 10
+    // unreadLast() 指针移动到 8
     /**
      * 获取下一个字符的位置
      */
-    public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+    public int nextPos() {
+        if (isEOF()) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return base + offset + 1;
     }
 
     /**
      * 获取当前字符的位置
      */
-    public Pos currentPos() {
-        return ptr;
+    public int currentPos() {
+        return base + offset;
     }
 
     /**
      * 获取上一个字符的位置
      */
-    public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+    public int previousPos() {
+        if (base + offset == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return base + offset - 1;
     }
 
     /**
-     * 将指针指向下一个字符，并返回当前字符
+     * 直接跳到某个位置，只用于整个输入都在内存里的情况
+     *
+     * @param pos 要跳到的位置
      */
-    public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+    void seek(int pos) {
+        if (source != null || pos < 0 || pos > length) {
+            throw new Error("seek out of buffer");
         }
+        offset = pos;
     }
 
-    private char getNextChar() {
+    /**
+     * 把位置换算成行列号用的行首表
+     */
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * 将指针指向下一个字符，并返回当前字符
+     */
+    public char nextChar() {
         if (isEOF()) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return buffer[offset++];
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (isEOF()) {
+            return 0;
         }
+        return buffer[offset];
     }
 
     public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+        return offset >= length && !fill();
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (offset == 0) {
+            throw new Error("previous position from beginning");
+        }
+        offset--;
     }
 
     public char getCurrentChar() {
-        char result = linesBuffer.get(ptr.row).charAt(ptr.col);
-        return result;
+        isEOF();
+        return buffer[offset];
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,6 @@
 package miniplc0java.tokenizer;
 
-import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 import java.util.Objects;
@@ -8,14 +8,30 @@ import java.util.Objects;
 public class Token {
     private TokenType tokenType;
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
-
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    // 起止位置都是输入中的字符偏移，要行列号的时候再通过 lines 换算
+    private int startPos;
+    private int endPos;
+    private LineIndex lines;
+    // 标识符在 NameTable 中的编号，其他 token 为 -1
+    private int nameId = -1;
+
+    public Token(TokenType tokenType, Object value, int startPos, int endPos, LineIndex lines) {
         this.tokenType = tokenType;
         this.value = value;
         this.startPos = startPos;
         this.endPos = endPos;
+        this.lines = lines;
+    }
+
+    /**
+     * 标识符 token
+     *
+     * @param name   NameTable 中保存的那一份名字
+     * @param nameId 名字的编号
+     */
+    public Token(TokenType tokenType, String name, int nameId, int startPos, int endPos, LineIndex lines) {
+        this(tokenType, name, startPos, endPos, lines);
+        this.nameId = nameId;
     }
 
     public Token(Token token) {
@@ -23,6 +39,8 @@ public class Token {
         this.value = token.value;
         this.startPos = token.startPos;
         this.endPos = token.endPos;
+        this.lines = token.lines;
+        this.nameId = token.nameId;
     }
 
     @Override
@@ -32,8 +50,8 @@ public class Token {
         if (o == null || getClass() != o.getClass())
             return false;
         Token token = (Token) o;
-        return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+        return tokenType == token.tokenType && Objects.equals(value, token.value) && startPos == token.startPos
+                && endPos == token.endPos;
     }
 
     @Override
@@ -64,27 +82,50 @@ public class Token {
         this.value = value;
     }
 
-    public Pos getStartPos() {
+    public int getNameId() {
+        return nameId;
+    }
+
+    public int getStartOffset() {
         return startPos;
     }
 
-    public void setStartPos(Pos startPos) {
+    public int getEndOffset() {
+        return endPos;
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * @return 起始位置的行列号
+     */
+    public Pos getStartPos() {
+        return lines.toPos(startPos);
+    }
+
+    public void setStartPos(int startPos) {
         this.startPos = startPos;
     }
 
+    /**
+     * @return 结束位置的行列号
+     */
     public Pos getEndPos() {
-        return endPos;
+        return lines.toPos(endPos);
     }
 
-    public void setEndPos(Pos endPos) {
+    public void setEndPos(int endPos) {
         this.endPos = endPos;
     }
 
     @Override
     public String toString() {
+        var startPos = getStartPos();
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
         sb.append("Value: ").append(this.value);
         return sb.toString();
@@ -92,6 +133,6 @@ public class Token {
 
     public String toStringAlt() {
         return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+                .append("at: ").append(getStartPos()).toString();
     }
 }
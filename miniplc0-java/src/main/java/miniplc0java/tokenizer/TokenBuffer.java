@@ -0,0 +1,157 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+import miniplc0java.util.LineIndex;
+
+/**
+ * 按列存放的一批 token：类型、起止位置和整数值各占一个基本类型数组
+ *
+ * 整数值对无符号整数是它的值，对标识符是名字在 NameTable 中的编号，对运算符是运算符字符，其他 token 为 0。
+ * 只有报错和输出 token 列表的时候才用 toToken() 临时构造 Token 对象
+ */
+public class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] values;
+    private int size = 0;
+
+    // 构造 Token 对象时要用，由 Tokenizer 填写
+    NameTable names;
+    LineIndex lines;
+
+    public TokenBuffer() {
+        this(256);
+    }
+
+    public TokenBuffer(int capacity) {
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        values = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int end, int value) {
+        if (size == types.length) {
+            int capacity = Math.max(16, size * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * 清空，数组留着下一批复用
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int start(int i) {
+        return starts[i];
+    }
+
+    public int end(int i) {
+        return ends[i];
+    }
+
+    public int value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return 把这些 token 的位置换算成行列号用的行首表
+     */
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * @return 标识符的编号对应的名字
+     */
+    public NameTable getNameTable() {
+        return names;
+    }
+
+    /**
+     * 把 [from, to) 换成 insert 中的 [insertFrom, insertTo)，后面的 token 位置都加上 delta
+     *
+     * 增量编译只重新分析改动附近的 token 时使用，insert 的行首表会成为整个缓冲区的行首表
+     *
+     * @param from       被替换的第一个 token
+     * @param to         被替换的最后一个 token 之后
+     * @param insert     新的 token
+     * @param insertFrom
+     * @param insertTo
+     * @param delta      后面的输入移动了多少
+     */
+    public void splice(int from, int to, TokenBuffer insert, int insertFrom, int insertTo, int delta) {
+        int count = insertTo - insertFrom;
+        int newSize = size - (to - from) + count;
+        if (newSize > types.length) {
+            int capacity = Math.max(newSize, size * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        int tail = size - to;
+        System.arraycopy(types, to, types, from + count, tail);
+        System.arraycopy(starts, to, starts, from + count, tail);
+        System.arraycopy(ends, to, ends, from + count, tail);
+        System.arraycopy(values, to, values, from + count, tail);
+        System.arraycopy(insert.types, insertFrom, types, from, count);
+        System.arraycopy(insert.starts, insertFrom, starts, from, count);
+        System.arraycopy(insert.ends, insertFrom, ends, from, count);
+        System.arraycopy(insert.values, insertFrom, values, from, count);
+        if (delta != 0) {
+            for (int i = from + count; i < newSize; i++) {
+                starts[i] += delta;
+                ends[i] += delta;
+            }
+        }
+        size = newSize;
+        names = insert.names;
+        lines = insert.lines;
+    }
+
+    /**
+     * 构造第 i 个 token 的 Token 对象
+     */
+    public Token toToken(int i) {
+        var type = type(i);
+        switch (type) {
+            case Uint:
+                return new Token(type, values[i], starts[i], ends[i], lines);
+            case Ident:
+                return new Token(type, names.name(values[i]), values[i], starts[i], ends[i], lines);
+            case Begin:
+            case End:
+            case Var:
+            case Const:
+            case Print:
+                return new Token(type, Keywords.text(type), starts[i], ends[i], lines);
+            case EOF:
+                return new Token(type, "", starts[i], ends[i], lines);
+            default:
+                return new Token(type, (char) values[i], starts[i], ends[i], lines);
+        }
+    }
+}
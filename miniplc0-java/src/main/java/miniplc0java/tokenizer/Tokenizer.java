@@ -2,23 +2,108 @@ package miniplc0java.tokenizer;
 
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
-import miniplc0java.util.Pos;
+import miniplc0java.util.LineIndex;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class Tokenizer {
 
     private StringIter it;
-    private HashMap<String, TokenType> keyWords;
+
+    // 这次编译中出现的所有标识符
+    private NameTable names = new NameTable();
+
+    // 读标识符时复用的缓冲区
+    private char[] nameBuffer = new char[32];
+
+    // ASCII 快速路径，碰到非 ASCII 字符以后换成 it，并置为 null
+    private AsciiLexer fast;
+
+    // 并行分析的结果，不为 null 时直接从这里读
+    private ParallelLexer parallel;
+
+    // nextToken() 用来暂存一个 token
+    private TokenBuffer single = new TokenBuffer(1);
+
+    // nextTokens() 在一批的中间遇到的错误，留到下一次调用时再抛出
+    private TokenizeError pendingError;
+
+    // 已经读出了多少个 token
+    private long tokenCount = 0;
 
     public Tokenizer(StringIter it) {
         this.it = it;
-        keyWords = new HashMap<String, TokenType>();
-        keyWords.put("begin", TokenType.Begin);
-        keyWords.put("end", TokenType.End);
-        keyWords.put("var", TokenType.Var);
-        keyWords.put("print", TokenType.Print);
-        keyWords.put("const", TokenType.Const);
+    }
+
+    /**
+     * 直接分析还没解码的 UTF-8 字节，全是 ASCII 的时候走快速路径
+     *
+     * @param source 输入
+     */
+    public Tokenizer(byte[] source) {
+        this(source, source.length);
+    }
+
+    /**
+     * @param source 输入
+     * @param length 输入的字节数
+     */
+    public Tokenizer(byte[] source, int length) {
+        this((StringIter) null);
+        this.fast = new AsciiLexer(source, length, names);
+    }
+
+    /**
+     * 从 from 处开始分析，标识符登记到已有的 names 中（增量编译重新分析改动的部分时使用）
+     *
+     * 位置仍然是在整个输入中的偏移
+     *
+     * @param source 输入
+     * @param length 输入的字节数
+     * @param names  已有的标识符表
+     * @param from   从哪个字节开始，必须在两个 token 之间
+     */
+    public Tokenizer(byte[] source, int length, NameTable names, int from) {
+        this((StringIter) null);
+        this.names = names;
+        this.fast = new AsciiLexer(source, from, length, names, new LineIndex(source, length));
+    }
+
+    /**
+     * 输入很大的时候切成几块用多个线程同时分析，得到的 token 流和顺序分析一样
+     *
+     * 输入太小或者不全是 ASCII 时仍然顺序分析
+     *
+     * @param source 输入
+     * @param length 输入的字节数
+     * @param jobs   最多用几个线程
+     */
+    public Tokenizer(byte[] source, int length, int jobs) {
+        this(source, length);
+        if (jobs > 1) {
+            this.parallel = ParallelLexer.lex(source, length, jobs, names, fast.getLineIndex());
+        }
+    }
+
+    /**
+     * @return 标识符表，标识符 token 的编号就是在这张表里的编号
+     */
+    public NameTable getNameTable() {
+        return names;
+    }
+
+    /**
+     * @return 把位置换算成行列号用的行首表
+     */
+    public LineIndex getLineIndex() {
+        return fast != null ? fast.getLineIndex() : it.getLineIndex();
+    }
+
+    /**
+     * @return 到现在为止读出了多少个 token，包括 EOF
+     */
+    public long getTokenCount() {
+        return tokenCount;
     }
 
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
@@ -29,26 +114,96 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        throwPendingError();
+        single.clear();
+        lex(single);
+        tokenCount++;
+        return single.toToken(0);
+    }
+
+    /**
+     * 一次读取最多 max 个 token，追加到 out 的末尾，读到 EOF 为止
+     *
+     * 如果在一批的中间出错，先返回出错之前的 token，下一次调用时再抛出这个错误，
+     * 这样错误出现的顺序和一个一个读取时一样
+     *
+     * @param out 存放 token 的缓冲区
+     * @param max 最多读取多少个
+     * @return 实际读取了多少个
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public int nextTokens(TokenBuffer out, int max) throws TokenizeError {
+        throwPendingError();
+        int count = 0;
+        while (count < max) {
+            try {
+                lex(out);
+            } catch (TokenizeError e) {
+                if (count == 0) {
+                    throw e;
+                }
+                pendingError = e;
+                break;
+            }
+            count++;
+            if (out.type(out.size() - 1) == TokenType.EOF) {
+                break;
+            }
+        }
+        tokenCount += count;
+        return count;
+    }
+
+    private void throwPendingError() throws TokenizeError {
+        if (pendingError != null) {
+            var e = pendingError;
+            pendingError = null;
+            throw e;
+        }
+    }
+
+    /**
+     * 读取一个 token 追加到 out 的末尾
+     */
+    private void lex(TokenBuffer out) throws TokenizeError {
+        out.names = names;
+        if (parallel != null) {
+            out.lines = parallel.tokens.lines;
+            parallel.next(out);
+            return;
+        }
+        if (fast != null) {
+            out.lines = fast.getLineIndex();
+            if (fast.next(out)) {
+                return;
+            }
+            // 碰到了非 ASCII 字符，剩下的交给 Unicode 版本
+            it = fast.fallback();
+            fast = null;
+        }
+
         it.readAll();
+        out.lines = it.getLineIndex();
 
         // 跳过之前的所有空白字符
         skipSpaceCharacters();
 
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            out.add(TokenType.EOF, it.currentPos(), it.currentPos(), 0);
+            return;
         }
 
         char peek = it.peekChar();
         if (Character.isDigit(peek)) {
-            return lexUInt();
+            lexUInt(out);
         } else if (Character.isAlphabetic(peek)) {
-            return lexIdentOrKeyword();
+            lexIdentOrKeyword(out);
         } else {
-            return lexOperatorOrUnknown();
+            lexOperatorOrUnknown(out);
         }
     }
 
-    private Token lexUInt() throws TokenizeError {
+    private void lexUInt(TokenBuffer out) throws TokenizeError {
         // 请填空：
         // 直到查看下一个字符不是数字为止:
         // -- 前进一个字符，并存储这个字符
@@ -58,8 +213,8 @@ public class Tokenizer {
         //
         // Token 的 Value 应填写数字的值
         StringBuilder stringBuilder = new StringBuilder();
-        Pos intStartPos = it.currentPos();
-        Pos intEndPos = it.nextPos();
+        int intStartPos = it.currentPos();
+        int intEndPos = it.nextPos();
 
         while (Character.isDigit(it.peekChar())) {
             intEndPos = it.nextPos();
@@ -67,12 +222,17 @@ public class Tokenizer {
             stringBuilder.append(currentChar);
             it.nextChar();
         }
-        int retValue = Integer.parseInt(stringBuilder.toString());
-        Token retToken = new Token(TokenType.Uint, retValue, intStartPos, intEndPos);
-        return retToken;
+        int retValue;
+        try {
+            retValue = Integer.parseInt(stringBuilder.toString());
+        } catch (NumberFormatException e) {
+            // 只剩下溢出这一种可能
+            throw new TokenizeError(ErrorCode.IntegerOverflow, intStartPos, it.getLineIndex());
+        }
+        out.add(TokenType.Uint, intStartPos, intEndPos, retValue);
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
+    private void lexIdentOrKeyword(TokenBuffer out) throws TokenizeError {
         // 请填空：
         // 直到查看下一个字符不是数字或字母为止:
         // -- 前进一个字符，并存储这个字符
@@ -82,63 +242,75 @@ public class Tokenizer {
         // -- 否则，返回标识符
         //
         // Token 的 Value 应填写标识符或关键字的字符串
-        StringBuilder stringBuilder = new StringBuilder();
-        Pos identOrKeywordStartPos = it.currentPos();
-        Pos identOrKeywordEndPos = it.nextPos();
+        int length = 0;
+        int identOrKeywordStartPos = it.currentPos();
+        int identOrKeywordEndPos = it.nextPos();
         if (Character.isAlphabetic(it.peekChar())) {
-            stringBuilder.append(it.getCurrentChar());
+            nameBuffer[length++] = it.getCurrentChar();
             identOrKeywordEndPos = it.nextPos();
             it.nextChar();
             while (Character.isAlphabetic(it.peekChar()) || Character.isDigit(it.peekChar())) {
-                char currentChar = it.getCurrentChar();
-                stringBuilder.append(currentChar);
+                if (length == nameBuffer.length) {
+                    nameBuffer = Arrays.copyOf(nameBuffer, length * 2);
+                }
+                nameBuffer[length++] = it.getCurrentChar();
                 identOrKeywordEndPos = it.nextPos();
                 it.nextChar();
             }
         }
-        String tmpToken = stringBuilder.toString();
-        if (keyWords.containsKey(tmpToken)) {
-            Token retToken = new Token(keyWords.get(tmpToken), tmpToken, identOrKeywordStartPos, identOrKeywordEndPos);
-            return retToken;
+        var keyWord = Keywords.lookup(nameBuffer, 0, length);
+        if (keyWord != null) {
+            out.add(keyWord, identOrKeywordStartPos, identOrKeywordEndPos, 0);
+            return;
         }
 
-        Token retToken = new Token(TokenType.Ident, tmpToken, identOrKeywordStartPos, identOrKeywordEndPos);
-        return retToken;
+        // 同一个名字只分配一次
+        int id = names.intern(nameBuffer, 0, length);
+        out.add(TokenType.Ident, identOrKeywordStartPos, identOrKeywordEndPos, id);
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError {
-        switch (it.nextChar()) {
+    private void lexOperatorOrUnknown(TokenBuffer out) throws TokenizeError {
+        char ch = it.nextChar();
+        switch (ch) {
             case '+':
-                return new Token(TokenType.Plus, '+', it.previousPos(), it.currentPos());
+                out.add(TokenType.Plus, it.previousPos(), it.currentPos(), ch);
+                return;
 
             case '-':
                 // 填入返回语句
-                return new Token(TokenType.Minus, '-', it.previousPos(), it.currentPos());
+                out.add(TokenType.Minus, it.previousPos(), it.currentPos(), ch);
+                return;
 
             case '*':
                 // 填入返回语句
-                return new Token(TokenType.Mult, '*', it.previousPos(), it.currentPos());
+                out.add(TokenType.Mult, it.previousPos(), it.currentPos(), ch);
+                return;
 
             case '/':
                 // 填入返回语句
-                return new Token(TokenType.Div, '/', it.previousPos(), it.currentPos());
+                out.add(TokenType.Div, it.previousPos(), it.currentPos(), ch);
+                return;
 
             case ';':
                 // 填入返回语句
-                return new Token(TokenType.Semicolon, ';', it.previousPos(), it.currentPos());
+                out.add(TokenType.Semicolon, it.previousPos(), it.currentPos(), ch);
+                return;
             // 填入更多状态和返回语句
             case '(':
                 // 填入返回语句
-                return new Token(TokenType.LParen, '(', it.previousPos(), it.currentPos());
+                out.add(TokenType.LParen, it.previousPos(), it.currentPos(), ch);
+                return;
             case ')':
                 // 填入返回语句
-                return new Token(TokenType.RParen, ')', it.previousPos(), it.currentPos());
+                out.add(TokenType.RParen, it.previousPos(), it.currentPos(), ch);
+                return;
             case '=':
                 // 填入返回语句
-                return new Token(TokenType.Equal, '=', it.previousPos(), it.currentPos());
+                out.add(TokenType.Equal, it.previousPos(), it.currentPos(), ch);
+                return;
             default:
                 // 不认识这个输入，摸了
-                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
+                throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos(), it.getLineIndex());
         }
     }
 
@@ -1,7 +1,5 @@
 package miniplc0java.tokenizer;
 
-import com.google.common.escape.Escaper;
-
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
@@ -0,0 +1,132 @@
+package miniplc0java.util;
+
+import java.util.Arrays;
+
+/**
+ * 行首偏移表
+ *
+ * 词法分析时位置只记成输入中的字符偏移，只有报错或者输出 token 列表的时候才通过这张表换算成行列号
+ *
+ * 每一行记一个 int，流式读取时也不丢掉窗口之前的行，任何已经读过的偏移都能换算，内存占用是 O(行数)
+ */
+public class LineIndex {
+    // lineStarts[i] 是第 i 行第一个字符的偏移，第 0 行总是从 0 开始
+    private int[] lineStarts = new int[64];
+    private int lineCount = 1;
+
+    // 已经扫描过多少个字符
+    private int scanned = 0;
+
+    // 输入整个在内存里的时候，等到要换算了再扫描
+    private char[] text;
+    private byte[] bytes;
+    private int textLength;
+
+    /**
+     * 由调用者通过 scan() 一段一段地喂进来（流式读取时使用）
+     */
+    public LineIndex() {
+    }
+
+    /**
+     * 输入已经整个在内存里，换算的时候只扫描用得到的部分
+     *
+     * @param text   输入
+     * @param length 输入的字符数
+     */
+    public LineIndex(char[] text, int length) {
+        this.text = text;
+        this.textLength = length;
+    }
+
+    /**
+     * 同上，输入是还没解码的字节（ASCII 快速路径使用）
+     *
+     * @param bytes  输入
+     * @param length 输入的字节数
+     */
+    public LineIndex(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.textLength = length;
+    }
+
+    /**
+     * 记录 buf[from, to) 中的换行
+     *
+     * buf[from] 必须正好是下一个还没扫描过的字符
+     */
+    public void scan(char[] buf, int from, int to) {
+        int base = scanned - from;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                addLine(base + i + 1);
+            }
+        }
+        scanned += to - from;
+    }
+
+    /**
+     * 同上，输入是字节
+     */
+    public void scan(byte[] buf, int from, int to) {
+        int base = scanned - from;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                addLine(base + i + 1);
+            }
+        }
+        scanned += to - from;
+    }
+
+    /**
+     * 把偏移换算成行列号
+     *
+     * @param offset 字符偏移
+     * @return 对应的位置
+     */
+    public Pos toPos(int offset) {
+        int line = line(offset);
+        return new Pos(line, offset - lineStarts[line]);
+    }
+
+    /**
+     * 偏移所在的行，和 toPos(offset).row 一样，但是不新建 Pos
+     *
+     * @param offset 字符偏移
+     * @return 行号，从 0 开始
+     */
+    public int line(int offset) {
+        if (text != null && scanned < offset) {
+            scan(text, scanned, Math.min(offset, textLength));
+        } else if (bytes != null && scanned < offset) {
+            scan(bytes, scanned, Math.min(offset, textLength));
+        }
+        // 找最后一个不大于 offset 的行首
+        int lo = 0;
+        int hi = lineCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param line 已经通过 line() 得到的行号
+     * @return 这一行第一个字符的偏移
+     */
+    public int lineStart(int line) {
+        return lineStarts[line];
+    }
+
+    private void addLine(int start) {
+        if (lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        }
+        lineStarts[lineCount++] = start;
+    }
+}
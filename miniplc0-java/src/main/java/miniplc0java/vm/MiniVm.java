@@ -5,10 +5,29 @@ import java.util.ArrayList;
 import java.util.List;
 
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
 
+/**
+ * 执行指令序列，WRT 输出的值每个一行
+ *
+ * Run() 是原来的实现，变量和临时值都放在一个 ArrayList&lt;Integer&gt; 里；Run(Engine) 可以选择别的执行方式，
+ * 输出和抛出的异常都和 Run() 一样
+ */
 public class MiniVm {
+    /**
+     * 执行方式
+     */
+    public enum Engine {
+        /** 原来的 ArrayList 实现，和 Run() 相同 */
+        LIST,
+        /** 先译成 int 数组，变量区和操作数栈分开，一个 switch 分派 */
+        SWITCH,
+    }
+
     private List<Instruction> instructions;
     private PrintStream out;
+    /** 第一次用 SWITCH 执行时翻译，之后复用 */
+    private Program program = null;
 
     /**
      * @param instructions
@@ -24,6 +43,55 @@ public class MiniVm {
         this.out = System.out;
     }
 
+    /**
+     * 执行读入的字节码，见 Bytecode.getCode()
+     *
+     * @param code  第 i 条指令的操作码是 code[2i]，操作数是 code[2i + 1]
+     * @param count 指令条数
+     * @param out
+     */
+    public MiniVm(int[] code, int count, PrintStream out) {
+        var operations = Operation.values();
+        this.instructions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            this.instructions.add(new Instruction(operations[code[2 * i]], code[2 * i + 1]));
+        }
+        this.out = out;
+        this.program = Program.decode(code, count);
+    }
+
+    public void Run(Engine engine) {
+        switch (engine) {
+            case LIST:
+                Run();
+                break;
+            case SWITCH: {
+                var output = new VmOutput(out);
+                try {
+                    SwitchInterpreter.run(getProgram(), output);
+                } finally {
+                    // 出错时已经输出的值也要写出去
+                    output.flush();
+                }
+            }
+                break;
+            default:
+                throw new Error("Unknown engine " + engine);
+        }
+    }
+
+    private Program getProgram() {
+        if (program == null) {
+            var code = new int[2 * instructions.size()];
+            for (int i = 0; i < instructions.size(); i++) {
+                code[2 * i] = instructions.get(i).getOpt().ordinal();
+                code[2 * i + 1] = instructions.get(i).getX();
+            }
+            program = Program.decode(code, instructions.size());
+        }
+        return program;
+    }
+
     private ArrayList<Integer> stack = new ArrayList<>();
 
     private int ip;
@@ -0,0 +1,202 @@
+package miniplc0java.vm;
+
+import java.util.Arrays;
+
+import miniplc0java.instruction.Operation;
+
+/**
+ * 译成执行用的内部指令的程序
+ *
+ * 原来的 MiniVm 把变量和临时值放在同一个栈上，LOD/STO 的操作数是栈上的绝对位置。程序没有跳转，
+ * 每条指令执行前栈有多深在执行前就能算出来，所以这里把栈拆成两部分：
+ *
+ * <ul>
+ * <li>局部变量区：一个栈位置最后一次被压入值以后，栈再也不会退到它下面，这个位置就是变量。
+ * 变量的个数就是程序结束时栈的深度，对 Analyser 生成的代码正好是声明的常量和变量个数</li>
+ * <li>操作数栈：其余的临时值，下标从 0 开始，最大深度也事先算好</li>
+ * </ul>
+ *
+ * 压入变量初值的那条指令后面插一条 STORE_LOCAL 把值移到变量区；LOD/STO 按执行到那里时
+ * 目标位置是变量还是临时值，译成 LOAD_LOCAL/STORE_LOCAL 或者 LOAD_STACK/STORE_STACK。
+ * 会越界的指令（栈下溢、LOD/STO 超出栈顶）译成 FAIL，执行到时抛出和 ArrayList 一样的异常；
+ * 它和 ILL 之后的指令不会被执行，不再翻译。
+ *
+ * 指令放在一个 int 数组里，第 i 条的操作码是 code[2i]，操作数是 code[2i + 1]
+ */
+final class Program {
+    static final int PUSH = 0;
+    static final int LOAD_LOCAL = 1;
+    static final int LOAD_STACK = 2;
+    static final int STORE_LOCAL = 3;
+    static final int STORE_STACK = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int MUL = 7;
+    static final int DIV = 8;
+    static final int WRITE = 9;
+    static final int FAIL = 10;
+    static final int ILLEGAL = 11;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** 按 Operation 的序号查：执行以后栈深度的变化 */
+    private static final int[] EFFECT = new int[OPERATIONS.length];
+    /** 按 Operation 的序号查：会不会在栈顶放一个新的值 */
+    private static final boolean[] PRODUCES = new boolean[OPERATIONS.length];
+    /** 按 Operation 的序号查：执行前栈上至少要有几个值 */
+    private static final int[] NEEDS = new int[OPERATIONS.length];
+    /** 按 Operation 的序号查：不需要改写操作数的指令对应的内部指令 */
+    private static final int[] TARGET = new int[OPERATIONS.length];
+    private static final int LOD = Operation.LOD.ordinal();
+    private static final int STO = Operation.STO.ordinal();
+    private static final int ILL = Operation.ILL.ordinal();
+
+    static {
+        for (var op : OPERATIONS) {
+            int i = op.ordinal();
+            switch (op) {
+                case LIT:
+                    EFFECT[i] = 1;
+                    PRODUCES[i] = true;
+                    TARGET[i] = PUSH;
+                    break;
+                case LOD:
+                    EFFECT[i] = 1;
+                    PRODUCES[i] = true;
+                    break;
+                case STO:
+                    EFFECT[i] = -1;
+                    NEEDS[i] = 1;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                    EFFECT[i] = -1;
+                    PRODUCES[i] = true;
+                    NEEDS[i] = 2;
+                    TARGET[i] = op == Operation.ADD ? ADD : op == Operation.SUB ? SUB : op == Operation.MUL ? MUL : DIV;
+                    break;
+                case WRT:
+                    EFFECT[i] = -1;
+                    NEEDS[i] = 1;
+                    TARGET[i] = WRITE;
+                    break;
+                default:
+                    TARGET[i] = ILLEGAL;
+                    break;
+            }
+        }
+    }
+
+    final int[] code;
+    /** 内部指令的条数 */
+    final int count;
+    /** 局部变量区的大小 */
+    final int locals;
+    /** 操作数栈的最大深度 */
+    final int maxStack;
+    /** FAIL 要检查的下标和长度，抛出的异常和原来的 ArrayList 一样 */
+    final int failIndex;
+    final int failLength;
+
+    private Program(int[] code, int count, int locals, int maxStack, int failIndex, int failLength) {
+        this.code = code;
+        this.count = count;
+        this.locals = locals;
+        this.maxStack = maxStack;
+        this.failIndex = failIndex;
+        this.failLength = failLength;
+    }
+
+    /**
+     * @param code  原来的指令，第 i 条的操作码（Operation 的序号）是 code[2i]，操作数是 code[2i + 1]
+     * @param count 指令条数
+     */
+    static Program decode(int[] code, int count) {
+        // 第一遍：算出能执行到哪里，以及每个栈位置最后一次被压入值的指令
+        var lastPush = new int[16];
+        int depth = 0;
+        int end = 0;
+        while (end < count) {
+            int op = code[2 * end];
+            if (!valid(op, code[2 * end + 1], depth)) {
+                break;
+            }
+            depth += EFFECT[op];
+            if (PRODUCES[op]) {
+                if (depth > lastPush.length) {
+                    lastPush = Arrays.copyOf(lastPush, lastPush.length * 2);
+                }
+                lastPush[depth - 1] = end;
+            }
+            end++;
+        }
+        int locals = depth;
+
+        // 第二遍：翻译，每个变量多一条 STORE_LOCAL，最后可能还有一条 FAIL 或 ILLEGAL
+        var out = new int[2 * (end + locals + 1)];
+        int n = 0;
+        // 已经成为变量的栈位置个数，它们下面的都是变量
+        int live = 0;
+        int maxStack = 0;
+        depth = 0;
+        for (int i = 0; i < end; i++) {
+            int op = code[2 * i];
+            int x = code[2 * i + 1];
+            if (op == LOD) {
+                out[n++] = x < live ? LOAD_LOCAL : LOAD_STACK;
+                out[n++] = x < live ? x : x - live;
+            } else if (op == STO) {
+                out[n++] = x < live ? STORE_LOCAL : STORE_STACK;
+                out[n++] = x < live ? x : x - live;
+            } else {
+                out[n++] = TARGET[op];
+                out[n++] = x;
+            }
+            depth += EFFECT[op];
+            maxStack = Math.max(maxStack, depth - live);
+            if (PRODUCES[op] && depth <= locals && lastPush[depth - 1] == i) {
+                // 这个值从此一直留在栈上，它是一个变量
+                out[n++] = STORE_LOCAL;
+                out[n++] = live++;
+            }
+        }
+
+        int failIndex = 0;
+        int failLength = 0;
+        if (end < count) {
+            int op = code[2 * end];
+            int x = code[2 * end + 1];
+            if (op == ILL) {
+                out[n++] = ILLEGAL;
+            } else {
+                out[n++] = FAIL;
+                // 和原来的 get(x)、pop() 以后的 set(x)、空栈上 pop() 时的 get(-1) 检查同样的下标
+                if (op == LOD) {
+                    failIndex = x;
+                    failLength = depth;
+                } else if (op == STO && depth > 0) {
+                    failIndex = x;
+                    failLength = depth - 1;
+                } else {
+                    failIndex = -1;
+                }
+            }
+            out[n++] = 0;
+        }
+        return new Program(out, n / 2, locals, Math.max(maxStack, 1), failIndex, failLength);
+    }
+
+    /**
+     * 在深度为 depth 的栈上执行这条指令会不会越界，ILL 算作不能执行
+     */
+    private static boolean valid(int op, int x, int depth) {
+        if (op == LOD) {
+            return x >= 0 && x < depth;
+        } else if (op == STO) {
+            return depth >= 1 && x >= 0 && x < depth - 1;
+        }
+        return op != ILL && depth >= NEEDS[op];
+    }
+}
@@ -0,0 +1,65 @@
+package miniplc0java.vm;
+
+import java.util.Objects;
+
+/**
+ * 在 int 数组上执行 Program：变量区和操作数栈都是 int[]，栈顶位置 sp 放在局部变量里，
+ * 一个 switch 分派所有指令，执行过程中不装箱也不分配对象
+ */
+final class SwitchInterpreter {
+    private SwitchInterpreter() {
+    }
+
+    static void run(Program program, VmOutput out) {
+        final int[] code = program.code;
+        final int end = 2 * program.count;
+        final int[] locals = new int[program.locals];
+        final int[] stack = new int[program.maxStack];
+        int sp = 0;
+        for (int pc = 0; pc < end; pc += 2) {
+            int x = code[pc + 1];
+            switch (code[pc]) {
+                case Program.PUSH:
+                    stack[sp++] = x;
+                    break;
+                case Program.LOAD_LOCAL:
+                    stack[sp++] = locals[x];
+                    break;
+                case Program.LOAD_STACK:
+                    stack[sp++] = stack[x];
+                    break;
+                case Program.STORE_LOCAL:
+                    locals[x] = stack[--sp];
+                    break;
+                case Program.STORE_STACK:
+                    stack[x] = stack[--sp];
+                    break;
+                case Program.ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case Program.SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case Program.MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case Program.DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case Program.WRITE:
+                    out.write(stack[--sp]);
+                    break;
+                case Program.FAIL:
+                    Objects.checkIndex(program.failIndex, program.failLength);
+                    break;
+                case Program.ILLEGAL:
+                default:
+                    throw new Error("Illegal instruction");
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * WRT 的输出，和原来的 out.printf("%d\n", value) 结果相同
+ *
+ * 数字先攒在一个 StringBuilder 里，攒够了或者执行结束（包括出错）时再一起写给 PrintStream。
+ * printf 的 %d 会用默认 locale 的数字，不是 ASCII 数字的 locale 下仍然逐个调用 printf
+ */
+final class VmOutput {
+    private static final int FLUSH_SIZE = 8192;
+
+    private final PrintStream out;
+    private final boolean asciiDigits;
+    private final StringBuilder buffer = new StringBuilder();
+
+    VmOutput(PrintStream out) {
+        this.out = out;
+        this.asciiDigits = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT))
+                .getZeroDigit() == '0';
+    }
+
+    void write(int value) {
+        if (!asciiDigits) {
+            out.printf("%d\n", value);
+            return;
+        }
+        buffer.append(value).append('\n');
+        if (buffer.length() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    void flush() {
+        if (buffer.length() > 0) {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+    }
+}
@@ -3,6 +3,134 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.IncrementalCompiler;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.Tokenizer;
+
 public class AnalyserTest {
 
+    private static String describe(List<Instruction> instructions) {
+        var sb = new StringBuilder();
+        for (var instruction : instructions) {
+            sb.append(instruction).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String compile(String source) {
+        try {
+            return describe(new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8))).analyse());
+        } catch (CompileError e) {
+            return e.toString();
+        }
+    }
+
+    private static String edit(IncrementalCompiler compiler, int start, int end, String replacement) {
+        try {
+            return describe(compiler.edit(start, end, replacement.getBytes(StandardCharsets.UTF_8)));
+        } catch (CompileError e) {
+            return e.toString();
+        }
+    }
+
+    private static IncrementalCompiler incremental(String source) {
+        var bytes = source.getBytes(StandardCharsets.UTF_8);
+        var compiler = new IncrementalCompiler(bytes, bytes.length);
+        try {
+            compiler.compile();
+        } catch (CompileError e) {
+            // 之后的修改会把它改好
+        }
+        return compiler;
+    }
+
+    @Test
+    public void testIncrementalMatchesFull() {
+        var initial = "begin\n  const c = 3;\n  var a = 1;\n  var b;\n  b = a + c;\n  print(b);\nend\n";
+        String[] pieces = { "a", "b", "c", "d", "1", "23", " ", ";", "=", "+", "-", "*", "/", "(", ")", "print(a);",
+                "b = b * 2;", "var d = 4;", "const e = 5;", "\n", "$", "\u00e9" };
+        var random = new Random(42);
+        var source = "";
+        IncrementalCompiler compiler = null;
+        for (int step = 0; step < 3000; step++) {
+            if (step % 40 == 0) {
+                // 时不时换回一个能通过编译的程序，免得一直停在错误里
+                source = initial;
+                compiler = incremental(source);
+            }
+            int start = random.nextInt(source.length() + 1);
+            int end = Math.min(source.length(), start + random.nextInt(4));
+            var replacement = random.nextInt(3) == 0 ? "" : pieces[random.nextInt(pieces.length)];
+            int byteStart = source.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+            int byteEnd = source.substring(0, end).getBytes(StandardCharsets.UTF_8).length;
+            source = source.substring(0, start) + replacement + source.substring(end);
+            assertEquals("after edit " + step + ":\n" + source, compile(source),
+                    edit(compiler, byteStart, byteEnd, replacement));
+        }
+    }
+
+    @Test
+    public void testIncrementalReusesUnchangedStatements() throws CompileError {
+        var sb = new StringBuilder("begin\n  var x = 0;\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("  x = x + ").append(i).append(";\n  print(x);\n");
+        }
+        sb.append("end\n");
+        var source = sb.toString();
+        var compiler = incremental(source);
+
+        // 改一个常数，只需要重新分析这一条语句
+        int at = source.indexOf("x + 500;") + 4;
+        var edited = source.substring(0, at) + "12345" + source.substring(at + 3);
+        assertEquals(compile(edited), describe(compiler.edit(at, at + 3, "12345".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(1, compiler.getRelexedTokens());
+        assertEquals(1, compiler.getReanalysedStatements());
+
+        // 新增一个变量，后面所有的指令都不变，只是多了一个
+        at = edited.indexOf("  x = x + 0;");
+        var declared = edited.substring(0, at) + "  var y = 7;\n" + edited.substring(at);
+        assertEquals(compile(declared), describe(compiler.edit(at, at, "  var y = 7;\n".getBytes(StandardCharsets.UTF_8))));
+        assertTrue(compiler.getReanalysedStatements() <= 3);
+    }
+
+    @Test
+    public void testRecoveryReportsAllErrors() {
+        var source = "begin\n const c = ;\n var a = 1 $ 2;\n var b;\n x = 3;\n c = 4;\n print(b);\n a = 99999999999;\n"
+                + " print(c);\nend\nx\n";
+        var analyser = new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8)));
+        var errors = analyser.analyseAll();
+        var codes = new StringBuilder();
+        for (var e : errors) {
+            codes.append(e.getErr()).append('@').append(e.getPos().row).append(' ');
+            // 不记录调用栈
+            assertEquals(0, e.getStackTrace().length);
+        }
+        assertEquals("ExpectedToken@1 InvalidInput@2 ExpectedToken@2 NotDeclared@4 NotDeclared@5 NotInitialized@6 "
+                + "NotDeclared@7 IntegerOverflow@7 NotDeclared@8 ExpectedToken@10 ", codes.toString());
+    }
+
+    @Test
+    public void testRecoveryWithoutErrors() throws CompileError {
+        var source = "begin const c = 1; var a = c + 2; print(a * 3); end";
+        var analyser = new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(analyser.analyseAll().isEmpty());
+        assertEquals(compile(source), describe(analyser.getInstructions()));
+    }
+
+    @Test
+    public void testDeeplyNestedExpression() throws CompileError {
+        int levels = 100000;
+        var source = "begin print(" + "-(1+".repeat(levels) + "2" + ")".repeat(levels) + "); end";
+        var instructions = new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8))).analyse();
+        // 每层：LIT 0, LIT 1, ..., ADD, SUB
+        assertEquals(levels * 4 + 2, instructions.size());
+        assertEquals("LIT 0\nLIT 1\nLIT 0\n", describe(instructions.subList(0, 3)));
+        assertEquals("LIT 2\nADD\nSUB\nADD\n", describe(instructions.subList(levels * 2, levels * 2 + 4)));
+    }
 }
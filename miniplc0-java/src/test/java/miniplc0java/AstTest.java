@@ -0,0 +1,203 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.ast.AstArena;
+import miniplc0java.ast.CodeGenerator;
+import miniplc0java.ast.InstructionLifter;
+import miniplc0java.ast.SlotAllocator;
+import miniplc0java.ast.SubexpressionEliminator;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+
+public class AstTest {
+
+    private static List<Instruction> compile(String source) throws CompileError {
+        return new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8))).analyse();
+    }
+
+    private static AstArena build(AstArena arena, String source) throws CompileError {
+        arena.reset();
+        var lifter = new InstructionLifter(arena);
+        new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8)), lifter).analyse();
+        return lifter.finish();
+    }
+
+    @Test
+    public void testTreeShape() throws CompileError {
+        var arena = build(new AstArena(), "begin const c = 3; var a = -c; var b; b = a * (c + 1); a = 0 - b; print(a); end");
+        byte[] kinds = { AstArena.DEFINE, AstArena.DEFINE, AstArena.DEFINE, AstArena.STORE, AstArena.PRINT };
+        assertEquals(kinds.length, arena.statementCount());
+        for (int i = 0; i < kinds.length; i++) {
+            assertEquals(kinds[i], arena.kind(arena.statement(i)));
+        }
+        // b 的第一次赋值：a * (c + 1)
+        int value = arena.left(arena.statement(2));
+        assertEquals(2, arena.value(arena.statement(2)));
+        assertEquals(AstArena.MUL, arena.kind(value));
+        assertEquals(AstArena.ADD, arena.kind(arena.right(value)));
+        // 指令里分不出 0 - b 和 -b，都是 NEG
+        assertEquals(AstArena.NEG, arena.kind(arena.left(arena.statement(3))));
+    }
+
+    @Test
+    public void testGeneratesSameInstructions() throws CompileError {
+        String[] sources = { "begin end", "begin var a; end", "begin const a = 1; const b = -2; print(a - b); end",
+                "begin var x = 1; var y; y = x + 2 * 3; x = -(y / 2) - -x; print(x); print(y * (x + +1)); end",
+                "begin var a; print(1); a = 2; var b = 3; end" };
+        var arena = new AstArena(1);
+        var generator = new CodeGenerator();
+        for (var source : sources) {
+            List<Instruction> expected;
+            try {
+                expected = compile(source);
+            } catch (CompileError e) {
+                continue;
+            }
+            // 同一个 arena 反复使用
+            assertEquals(source, expected, generator.generate(build(arena, source)));
+        }
+    }
+
+    @Test
+    public void testDeepNesting() throws CompileError {
+        var sb = new StringBuilder("begin print(");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("1+(");
+        }
+        sb.append('1');
+        for (int i = 0; i < 20000; i++) {
+            sb.append(')');
+        }
+        sb.append("); end");
+        var source = sb.toString();
+        assertEquals(compile(source), new CodeGenerator().generate(build(new AstArena(), source)));
+    }
+
+    private static String run(List<Instruction> instructions) {
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        try {
+            new MiniVm(instructions, output).Run();
+        } catch (ArithmeticException e) {
+            output.print(e);
+        }
+        return ostream.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSlotReuse() throws CompileError {
+        // 每个变量只活到下一条声明
+        var sb = new StringBuilder("begin const c0 = 1;");
+        for (int i = 1; i < 100; i++) {
+            sb.append(" var c").append(i).append(" = c").append(i - 1).append(" + ").append(i).append(';');
+        }
+        sb.append(" print(c99); end");
+        var arena = build(new AstArena(), sb.toString());
+        var allocator = new SlotAllocator();
+        allocator.run(arena);
+        assertEquals(100, allocator.getSlotsBefore());
+        assertEquals(1, allocator.getSlotsAfter());
+        assertEquals(run(compile(sb.toString())), run(new CodeGenerator().generate(arena)));
+    }
+
+    private static String value(Random random, List<Integer> initialized) {
+        if (initialized.isEmpty()) {
+            return String.valueOf(random.nextInt(5));
+        }
+        var pick = initialized.get(random.nextInt(initialized.size()));
+        var other = initialized.get(random.nextInt(initialized.size()));
+        return "v" + pick + "+" + random.nextInt(5) + "/v" + other;
+    }
+
+    /**
+     * 先声明，最后几个不带初值，按声明的顺序第一次赋值；再随机赋值和输出，只读已经有值的变量
+     */
+    private static String randomProgram(Random random) {
+        var sb = new StringBuilder("begin");
+        var initialized = new ArrayList<Integer>();
+        int count = 2 + random.nextInt(10);
+        int withValue = 1 + random.nextInt(count);
+        for (int j = 0; j < count; j++) {
+            sb.append(" var v").append(j);
+            if (j < withValue) {
+                sb.append(" = ").append(value(random, initialized));
+                initialized.add(j);
+            }
+            sb.append(';');
+        }
+        for (int j = 0; j < 20; j++) {
+            if (random.nextBoolean()) {
+                int target = random.nextInt(initialized.size() + (initialized.size() < count ? 1 : 0));
+                sb.append(" v").append(target).append(" = ").append(value(random, initialized)).append(';');
+                if (target == initialized.size()) {
+                    initialized.add(target);
+                }
+            } else {
+                sb.append(" print(").append(value(random, initialized)).append(");");
+            }
+        }
+        return sb.append(" end").toString();
+    }
+
+    @Test
+    public void testSlotReuseKeepsBehaviour() throws CompileError {
+        var random = new Random(3);
+        var arena = new AstArena();
+        var allocator = new SlotAllocator();
+        for (int n = 0; n < 300; n++) {
+            var source = randomProgram(random);
+            allocator.run(build(arena, source));
+            assertEquals(source, run(compile(source)), run(new CodeGenerator().generate(arena)));
+        }
+    }
+
+    @Test
+    public void testCommonSubexpressions() throws CompileError {
+        var source = "begin var a = 2; var b = 3; var c = 4; var x; print(a*b+c); x = a*b+c; print(x - b*a);"
+                + " a = 1; print(a*b+c); print(-(a*b+c)); end";
+        var arena = build(new AstArena(), source);
+        var eliminator = new SubexpressionEliminator();
+        eliminator.run(arena);
+        // a*b 和 a*b+c 各存一次；a 被重新赋值以后要重新算
+        assertEquals(3, eliminator.getReused());
+        var instructions = new CodeGenerator().generate(arena);
+        assertEquals(eliminator.getInstructionsAfter(), instructions.size());
+        assertEquals(compile(source).size(), eliminator.getInstructionsBefore());
+        assertTrue(instructions.size() < eliminator.getInstructionsBefore());
+        assertEquals(run(compile(source)), run(instructions));
+    }
+
+    @Test
+    public void testCommonSubexpressionsKeepBehaviour() throws CompileError {
+        var random = new Random(5);
+        var arena = new AstArena();
+        var eliminator = new SubexpressionEliminator();
+        var allocator = new SlotAllocator();
+        int reused = 0;
+        for (int n = 0; n < 300; n++) {
+            var source = randomProgram(random);
+            eliminator.run(build(arena, source));
+            reused += eliminator.getReused();
+            var instructions = new CodeGenerator().generate(arena);
+            assertEquals(source, run(compile(source)), run(instructions));
+            // 和复用栈位置一起用
+            allocator.run(arena);
+            assertEquals(source, run(instructions), run(new CodeGenerator().generate(arena)));
+        }
+        assertTrue(reused > 0);
+    }
+}
@@ -0,0 +1,81 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchCompilerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cwd;
+    private String log;
+
+    private int run(String... args) {
+        var err = new ByteArrayOutputStream();
+        int code = App.run(args, cwd, InputStream.nullInputStream(), new PrintStream(new ByteArrayOutputStream()),
+                new PrintStream(err));
+        log = err.toString(StandardCharsets.UTF_8);
+        return code;
+    }
+
+    private void write(String name, String source) throws IOException {
+        var path = cwd.resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, source);
+    }
+
+    @Test
+    public void testSameAsSingleRuns() throws IOException {
+        cwd = folder.getRoot().toPath();
+        for (int i = 0; i < 50; i++) {
+            write("in/p" + i + ".txt", "begin\nvar a = " + i + ";\nprint(a * a - " + i + ");\nend\n");
+        }
+        write("in/sub/bad.txt", "begin\nprint(b);\nend\n");
+        write("in/sub/overflow.txt", "begin\nprint(99999999999);\nend\n");
+
+        assertEquals(0, run("-l", "--batch", "--threads", "4", "-o", "out", "in"));
+        assertTrue(log, log.contains("in/sub/bad.txt: Analyze Error: NotDeclared"));
+        assertTrue(log, log.contains("in/sub/overflow.txt: Tokenize Error: IntegerOverflow"));
+        assertTrue(log, log.contains("Compiled 52 files (2 with errors)"));
+
+        for (var name : new String[] { "p0", "p7", "p49", "sub/bad", "sub/overflow" }) {
+            assertEquals(0, run("-l", "-o", "single.out", "in/" + name + ".txt"));
+            assertEquals(name, Files.readString(cwd.resolve("single.out")),
+                    Files.readString(cwd.resolve("out/" + name + ".out")));
+        }
+    }
+
+    @Test
+    public void testGlobAndManifest() throws IOException {
+        cwd = folder.getRoot().toPath();
+        write("a.txt", "begin\nprint(1);\nend\n");
+        write("b.txt", "begin\nprint(2);\nend\n");
+        write("c.src", "begin\nprint(3);\nend\n");
+
+        assertEquals(0, run("-t", "--batch", "--suffix", ".tok", "-o", "glob", "*.txt"));
+        assertTrue(Files.exists(cwd.resolve("glob/a.tok")));
+        assertTrue(Files.exists(cwd.resolve("glob/b.tok")));
+        assertTrue(Files.notExists(cwd.resolve("glob/c.tok")));
+
+        write("list", "# 清单\nc.src\ta/c.lst\nb.txt\n");
+        assertEquals(0, run("-l", "--batch", "-o", "manifest", "@list"));
+        assertEquals("LIT 3\nWRT\n", Files.readString(cwd.resolve("manifest/a/c.lst")));
+        assertEquals("LIT 2\nWRT\n", Files.readString(cwd.resolve("manifest/b.out")));
+
+        // 两个输入写到同一个输出
+        write("list", "a.txt\tx\nb.txt\tx\n");
+        assertEquals(3, run("-l", "--batch", "-o", "manifest", "@list"));
+    }
+}
@@ -0,0 +1,161 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import miniplc0java.bytecode.Bytecode;
+import miniplc0java.bytecode.BytecodeWriter;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+public class BytecodeTest {
+    private static byte[] write(List<Instruction> instructions) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new BytecodeWriter(out);
+        instructions.forEach(writer);
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        var random = new Random(22);
+        var operations = Operation.values();
+        for (int round = 0; round < 200; round++) {
+            var instructions = new ArrayList<Instruction>();
+            for (int i = random.nextInt(100); i > 0; i--) {
+                var op = operations[random.nextInt(operations.length)];
+                int x = 0;
+                if (op == Operation.LIT || op == Operation.LOD || op == Operation.STO) {
+                    x = random.nextBoolean() ? random.nextInt(300) - 150 : random.nextInt();
+                }
+                instructions.add(new Instruction(op, x));
+            }
+            var bytes = write(instructions);
+            var bytecode = Bytecode.load(new ByteArrayInputStream(bytes));
+            assertEquals(instructions, bytecode.toInstructions());
+            assertEquals(instructions.size(), bytecode.getCount());
+        }
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        var instructions = List.of(new Instruction(Operation.LIT, 1), new Instruction(Operation.LIT, -1),
+                new Instruction(Operation.LOD, 0), new Instruction(Operation.ADD), new Instruction(Operation.ADD),
+                new Instruction(Operation.WRT));
+        var bytes = write(instructions);
+        var bytecode = Bytecode.load(bytes, bytes.length);
+        assertEquals(3, bytecode.getMaxDepth());
+        // 头部 5 字节，LIT 1 和 LIT -1 各 2 字节，LOD 0 2 字节，其余各 1 字节，末尾 count、maxDepth、length
+        // 各 1 字节，校验和 4 字节
+        assertEquals(5 + 2 + 2 + 2 + 3 + 3 + 4, bytes.length);
+        assertEquals(Operation.LIT, bytecode.operation(1));
+        assertEquals(-1, bytecode.operand(1));
+    }
+
+    @Test
+    public void testRejectsCorruption() throws IOException {
+        var bytes = write(List.of(new Instruction(Operation.LIT, 300), new Instruction(Operation.WRT)));
+        for (int i = 0; i < bytes.length; i++) {
+            for (int bit = 0; bit < 8; bit++) {
+                var broken = bytes.clone();
+                broken[i] ^= 1 << bit;
+                try {
+                    Bytecode.load(broken, broken.length);
+                    fail("byte " + i + " bit " + bit);
+                } catch (IOException e) {
+                    // 正确
+                }
+            }
+        }
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                Bytecode.load(bytes, length);
+                fail("length " + length);
+            } catch (IOException e) {
+                // 正确
+            }
+        }
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        var out = new ByteArrayOutputStream();
+        var writer = new BytecodeWriter(out);
+        var instructions = new ArrayList<Instruction>();
+        for (int i = 0; i < 100000; i++) {
+            var instruction = new Instruction(Operation.LIT, i);
+            writer.accept(instruction);
+            instructions.add(instruction);
+        }
+        // 还没有 finish()，前面的块已经写出去了
+        assertTrue(out.size() > 64 * 1024);
+        writer.finish();
+        var bytecode = Bytecode.load(out.toByteArray(), out.size());
+        assertEquals(instructions, bytecode.toInstructions());
+        assertEquals(100000, bytecode.getMaxDepth());
+    }
+
+    @Test
+    public void testRejectsLongVarint() throws IOException {
+        // LIT Integer.MIN_VALUE 的操作数是 5 字节的 ff ff ff ff 0f
+        var bytes = write(List.of(new Instruction(Operation.LIT, Integer.MIN_VALUE)));
+        assertEquals(Integer.MIN_VALUE, Bytecode.load(bytes, bytes.length).operand(0));
+        // 第 5 字节用到第 5 位，重新算校验和，只有 varint 是错的
+        bytes[10] = 0x1f;
+        var crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        int value = (int) crc.getValue();
+        for (int i = 0; i < 4; i++) {
+            bytes[bytes.length - 4 + i] = (byte) (value >>> 24 - 8 * i);
+        }
+        try {
+            Bytecode.load(bytes, bytes.length);
+            fail("should reject the varint");
+        } catch (IOException e) {
+            assertEquals("Varint is too long.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEmitBinary() throws IOException {
+        var source = "begin\nconst a = 3;\nvar b = a * -200;\nb = b / (a - 1);\nprint(b);\nend\n";
+        var text = new ByteArrayOutputStream();
+        var binary = new ByteArrayOutputStream();
+        var err = new PrintStream(new ByteArrayOutputStream());
+        for (var stream : new String[] { "--ast", "--stream" }) {
+            text.reset();
+            binary.reset();
+            App.run(new String[] { "-l", stream, "-o", "-", "-" }, Path.of(""), stdin(source), new PrintStream(text),
+                    err);
+            App.run(new String[] { "-l", stream, "--emit", "binary", "-o", "-", "-" }, Path.of(""), stdin(source),
+                    new PrintStream(binary), err);
+
+            var expected = new StringBuilder();
+            for (var instruction : Bytecode.load(binary.toByteArray(), binary.size()).toInstructions()) {
+                expected.append(instruction).append('\n');
+            }
+            assertEquals(expected.toString(), text.toString(StandardCharsets.UTF_8));
+            assertTrue(binary.size() < text.size() / 2);
+        }
+    }
+
+    private static InputStream stdin(String source) {
+        return new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+    }
+}
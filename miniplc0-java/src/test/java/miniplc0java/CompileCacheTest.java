@@ -0,0 +1,127 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import miniplc0java.cache.CompileCache;
+
+public class CompileCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String key(String source) {
+        var bytes = source.getBytes(StandardCharsets.UTF_8);
+        return CompileCache.key("analyse,", bytes, bytes.length);
+    }
+
+    @Test
+    public void testHitAndMiss() throws IOException {
+        var cache = new CompileCache(folder.getRoot().toPath(), 1 << 20);
+        var key = key("begin print(1); end");
+        assertNotEquals(key, key("begin print(2); end"));
+        assertNotEquals(key, CompileCache.key("tokenize,", "begin print(1); end".getBytes(StandardCharsets.UTF_8), 19));
+
+        var out = new ByteArrayOutputStream();
+        assertFalse(cache.lookup(key, out));
+        cache.store(key, "LIT 1\nWRT\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(cache.lookup(key, out));
+        assertEquals("LIT 1\nWRT\n", out.toString(StandardCharsets.UTF_8));
+        // 条目前面有 4 字节的提示长度和 4 字节的输出长度
+        assertArrayEquals(new long[] { 1, 1, 18 }, cache.stats());
+    }
+
+    @Test
+    public void testReplaysMessages() throws IOException {
+        var cache = new CompileCache(folder.getRoot().toPath(), 1 << 20);
+        var key = key("begin print(1 + 0); end");
+        cache.store(key, "LIT 1\nWRT\n".getBytes(StandardCharsets.UTF_8),
+                "Optimizer removed 2 instructions.\n".getBytes(StandardCharsets.UTF_8));
+        var out = new ByteArrayOutputStream();
+        var messages = new ByteArrayOutputStream();
+        assertTrue(cache.lookup(key, out, messages));
+        assertEquals("LIT 1\nWRT\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals("Optimizer removed 2 instructions.\n", messages.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException, InterruptedException {
+        var cache = new CompileCache(folder.getRoot().toPath(), 250);
+        var entry = new byte[100];
+        cache.store(key("a"), entry);
+        Thread.sleep(20);
+        cache.store(key("b"), entry);
+        Thread.sleep(20);
+        // a 刚用过，超过上限时先删 b
+        assertTrue(cache.lookup(key("a"), new ByteArrayOutputStream()));
+        Thread.sleep(20);
+        cache.store(key("c"), entry);
+        assertTrue(cache.lookup(key("a"), new ByteArrayOutputStream()));
+        assertFalse(cache.lookup(key("b"), new ByteArrayOutputStream()));
+        assertTrue(cache.lookup(key("c"), new ByteArrayOutputStream()));
+        assertEquals(216, cache.stats()[2]);
+    }
+
+    @Test
+    public void testBrokenEntryIsMiss() throws IOException {
+        var cache = new CompileCache(folder.getRoot().toPath(), 1 << 20);
+        var key = key("begin print(1); end");
+        cache.store(key, "LIT 1\nWRT\n".getBytes(StandardCharsets.UTF_8));
+        var path = folder.getRoot().toPath().resolve(key.substring(0, 2)).resolve(key + ".out");
+        var complete = Files.readAllBytes(path);
+        // 断电以后可能留下空的或者只写了一半的条目
+        for (int length : new int[] { 0, 3, complete.length - 1 }) {
+            Files.write(path, Arrays.copyOf(complete, length));
+            var out = new ByteArrayOutputStream();
+            assertFalse(cache.lookup(key, out));
+            assertEquals(0, out.size());
+            assertFalse(Files.exists(path));
+        }
+        cache.store(key, "LIT 1\nWRT\n".getBytes(StandardCharsets.UTF_8));
+        var out = new ByteArrayOutputStream();
+        assertTrue(cache.lookup(key, out));
+        assertEquals("LIT 1\nWRT\n", out.toString(StandardCharsets.UTF_8));
+        assertEquals(3, cache.stats()[1]);
+    }
+
+    @Test
+    public void testConcurrentUse() throws IOException, InterruptedException, ExecutionException {
+        var cache = new CompileCache(folder.getRoot().toPath(), 1 << 20);
+        var pool = Executors.newFixedThreadPool(8);
+        var results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 200; i++) {
+            var source = "begin print(" + i % 10 + "); end";
+            results.add(pool.submit(() -> {
+                var out = new ByteArrayOutputStream();
+                if (cache.lookup(key(source), out)) {
+                    // 读到的一定是完整的内容
+                    return out.toString(StandardCharsets.UTF_8).equals(source);
+                }
+                cache.store(key(source), source.getBytes(StandardCharsets.UTF_8));
+                return true;
+            }));
+        }
+        for (var result : results) {
+            assertTrue(result.get());
+        }
+        pool.shutdown();
+        var stats = cache.stats();
+        assertEquals(200, stats[0] + stats[1]);
+    }
+}
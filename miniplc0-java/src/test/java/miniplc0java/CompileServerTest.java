@@ -0,0 +1,220 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import miniplc0java.server.CompileClient;
+import miniplc0java.server.CompileServer;
+
+public class CompileServerTest {
+    private static final String SOURCE = "begin\nconst a = 3;\nvar b = a * 2;\nb = b - -1;\nprint(b / a);\nend\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CompileServer server;
+    private Thread thread;
+    /** 口令文件放在这里，不碰真正的用户目录 */
+    private Path tokens;
+
+    @Before
+    public void start() throws IOException {
+        tokens = folder.newFolder("tokens").toPath();
+        server = new CompileServer(0, tokens);
+        thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+    }
+
+    @After
+    public void stop() throws IOException, InterruptedException {
+        server.close();
+        thread.join();
+    }
+
+    /**
+     * @return 退出码、标准输出和标准错误
+     */
+    private static String[] local(Path cwd, String input, String... args) {
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        int code = App.run(args, cwd, stdin(input), new PrintStream(out), new PrintStream(err));
+        return new String[] { Integer.toString(code), out.toString(StandardCharsets.UTF_8),
+                err.toString(StandardCharsets.UTF_8) };
+    }
+
+    private String[] remote(int port, Path cwd, String input, String... args) {
+        var forwarded = new String[args.length + 2];
+        forwarded[0] = "--port";
+        forwarded[1] = Integer.toString(port);
+        System.arraycopy(args, 0, forwarded, 2, args.length);
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        int code = CompileClient.run(forwarded, tokens, cwd, stdin(input), new PrintStream(out), new PrintStream(err));
+        return new String[] { Integer.toString(code), out.toString(StandardCharsets.UTF_8),
+                err.toString(StandardCharsets.UTF_8) };
+    }
+
+    private static InputStream stdin(String input) {
+        return new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSameAsLocal() throws IOException {
+        var cwd = folder.getRoot().toPath();
+        Files.writeString(cwd.resolve("in.txt"), SOURCE);
+        int port = server.getPort();
+
+        for (var args : new String[][] { { "-t", "-o", "-", "-" }, { "-l", "-o", "-", "-" },
+                { "-l", "--cse", "-O", "-o", "-", "-" }, { "-l", "-o", "-", "missing.txt" }, { "-x" },
+                { "-o", "-", "-" } }) {
+            var expected = local(cwd, SOURCE, args);
+            var actual = remote(port, cwd, SOURCE, args);
+            assertEquals(expected[0], actual[0]);
+            assertEquals(expected[1], actual[1]);
+            // 栈回溯不一样，只比较第一行
+            assertEquals(expected[2].split("\n")[0], actual[2].split("\n")[0]);
+        }
+
+        // 错误也一样
+        var broken = "begin\nprint(c);\nend\n";
+        assertEquals(local(cwd, broken, "-l", "-o", "-", "-")[2], remote(port, cwd, broken, "-l", "-o", "-", "-")[2]);
+
+        // 相对路径按客户端的工作目录
+        assertEquals("0", remote(port, cwd, "", "-l", "-o", "out.txt", "in.txt")[0]);
+        assertEquals(local(cwd, SOURCE, "-l", "-o", "-", "-")[1], Files.readString(cwd.resolve("out.txt")));
+        assertEquals("0", remote(port, cwd, "", "-l", "--cache-dir", "cache", "-o", "cached.txt", "in.txt")[0]);
+        assertTrue(Files.isDirectory(cwd.resolve("cache")));
+    }
+
+    @Test
+    public void testToken() throws IOException {
+        var file = tokens.resolve("server-" + server.getPort() + ".token");
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokens)));
+        }
+        var cwd = folder.getRoot().toPath();
+        assertEquals("0", remote(server.getPort(), cwd, SOURCE, "-l", "-o", "out.txt", "-")[0]);
+
+        // 口令不对的请求不执行
+        var lines = Files.readAllLines(file);
+        assertEquals(Long.toString(ProcessHandle.current().pid()), lines.get(1));
+        lines.set(0, "guess");
+        Files.write(file, lines);
+        var actual = remote(server.getPort(), cwd, SOURCE, "-l", "-o", "rejected.txt", "-");
+        assertEquals("2", actual[0]);
+        assertTrue(actual[2].contains("wrong token"));
+        assertFalse(Files.exists(cwd.resolve("rejected.txt")));
+    }
+
+    @Test
+    public void testStaleToken() throws IOException, InterruptedException {
+        // 服务器被 kill -9 以后留下了口令文件，端口又被别的程序占了
+        var dead = new ProcessBuilder("java", "-version").redirectErrorStream(true).start();
+        dead.getInputStream().readAllBytes();
+        dead.waitFor();
+        var cwd = folder.getRoot().toPath();
+        try (var impostor = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            var file = tokens.resolve("server-" + impostor.getLocalPort() + ".token");
+            Files.writeString(file, "stale\n" + dead.pid() + "\n-1\n");
+            var actual = remote(impostor.getLocalPort(), cwd, SOURCE, "-l", "-o", "-", "-");
+            assertEquals(local(cwd, SOURCE, "-l", "-o", "-", "-")[1], actual[1]);
+            assertFalse(Files.exists(file));
+            // 客户端没有连过去
+            impostor.setSoTimeout(200);
+            try {
+                impostor.accept().close();
+                fail("the client connected to a port whose server is gone");
+            } catch (SocketTimeoutException e) {
+                // 正确
+            }
+
+            // 新的服务器启动时也会删掉这样的文件
+            Files.writeString(file, "stale\n" + dead.pid() + "\n-1\n");
+            new CompileServer(0, tokens).close();
+            assertFalse(Files.exists(file));
+        }
+    }
+
+    @Test
+    public void testLimits() throws IOException, InterruptedException {
+        var limited = new CompileServer(0, tokens, 1, 300);
+        var serving = new Thread(() -> {
+            try {
+                limited.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serving.start();
+        try (var idle = new Socket(InetAddress.getLoopbackAddress(), limited.getPort())) {
+            // 唯一的线程被一个什么都不发的连接占着，新的请求改在本地执行
+            Thread.sleep(50);
+            var cwd = folder.getRoot().toPath();
+            var actual = remote(limited.getPort(), cwd, SOURCE, "-l", "-o", "-", "-");
+            assertEquals("0", actual[0]);
+            assertEquals(local(cwd, SOURCE, "-l", "-o", "-", "-")[1], actual[1]);
+
+            // 握手超时以后服务器关掉这个连接
+            idle.setSoTimeout(5000);
+            assertEquals(-1, idle.getInputStream().read());
+        } finally {
+            limited.close();
+            serving.join();
+        }
+    }
+
+    @Test
+    public void testBadPort() {
+        var err = new ByteArrayOutputStream();
+        for (var port : new String[] { "x", "-1", "65536" }) {
+            assertEquals(3, CompileServer.main(new String[] { "--port", port }, new PrintStream(err)));
+            assertEquals(3, CompileClient.run(new String[] { "--port", port, "-l", "-o", "-", "-" },
+                    folder.getRoot().toPath(), stdin(SOURCE), new PrintStream(new ByteArrayOutputStream()),
+                    new PrintStream(err)));
+        }
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("usage"));
+    }
+
+    @Test
+    public void testFallsBackWithoutServer() throws IOException {
+        int port;
+        try (var unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        var cwd = folder.getRoot().toPath();
+        var actual = remote(port, cwd, SOURCE, "-l", "-o", "-", "-");
+        assertEquals("0", actual[0]);
+        assertTrue(actual[1].endsWith("WRT\n"));
+        assertEquals(local(cwd, SOURCE, "-l", "-o", "-", "-")[1], actual[1]);
+    }
+}
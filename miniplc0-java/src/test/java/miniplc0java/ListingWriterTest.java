@@ -0,0 +1,66 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.listing.ListingWriter;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+
+public class ListingWriterTest {
+    @Test
+    public void testInstructions() {
+        var random = new Random(23);
+        var operations = Operation.values();
+        var expected = new ByteArrayOutputStream();
+        var print = new PrintStream(expected);
+        var actual = new ByteArrayOutputStream();
+        var writer = new ListingWriter(actual);
+        int[] edges = { 0, -1, 9, 10, -10, 2147483647, -2147483648 };
+        // 足够多的指令，中间要换好几次块
+        for (int i = 0; i < 50000; i++) {
+            var op = operations[random.nextInt(operations.length)];
+            int x = i < edges.length ? edges[i] : random.nextBoolean() ? random.nextInt(200) - 100 : random.nextInt();
+            var instruction = new Instruction(op, x);
+            print.println(instruction.toString());
+            writer.accept(instruction);
+        }
+        print.flush();
+        writer.flush();
+        assertEquals(expected.toString(StandardCharsets.UTF_8), actual.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTokens() throws TokenizeError {
+        var source = "begin\n  var 变量 = 2147483647;\n\tconst 名字 = 0; print(变量/名字*(1+-2));\nend\n";
+        for (var tokenizer : new Tokenizer[] { new Tokenizer(new StringIter(source)),
+                new Tokenizer(source.getBytes(StandardCharsets.UTF_8)) }) {
+            var tokens = new TokenBuffer();
+            while (tokens.size() == 0 || tokens.type(tokens.size() - 1) != TokenType.EOF) {
+                tokenizer.nextTokens(tokens, 5);
+            }
+            var expected = new ByteArrayOutputStream();
+            var print = new PrintStream(expected);
+            for (int i = 0; i < tokens.size(); i++) {
+                print.println(tokens.toToken(i).toString());
+            }
+            print.flush();
+            var actual = new ByteArrayOutputStream();
+            var writer = new ListingWriter(actual);
+            writer.tokens(tokens, 0, tokens.size());
+            writer.flush();
+            assertEquals(expected.toString(), actual.toString());
+        }
+    }
+}
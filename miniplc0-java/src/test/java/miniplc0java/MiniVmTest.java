@@ -4,13 +4,20 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
 import miniplc0java.instruction.Instruction;
 import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.Tokenizer;
 import miniplc0java.vm.MiniVm;
 
 public class MiniVmTest {
@@ -25,9 +32,87 @@ public class MiniVmTest {
         output.close();
 
         var outString = ostream.toString(utf8);
+        // 其他执行方式的结果要一样
+        for (var engine : MiniVm.Engine.values()) {
+            assertEquals(engine.toString(), outString, runEngine(instructions, engine));
+        }
         return outString;
     }
 
+    /**
+     * @return 输出，出错时后面再接上异常
+     */
+    private static String runEngine(List<Instruction> instructions, MiniVm.Engine engine) {
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        try {
+            new MiniVm(instructions, output).Run(engine);
+        } catch (RuntimeException | Error e) {
+            output.print(e);
+        }
+        return ostream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void assertSameEngines(List<Instruction> instructions) {
+        var expected = runEngine(instructions, MiniVm.Engine.LIST);
+        for (var engine : MiniVm.Engine.values()) {
+            assertEquals(engine + " " + instructions, expected, runEngine(instructions, engine));
+        }
+    }
+
+    @Test
+    public void testEnginesOnRandomCode() {
+        var random = new Random(24);
+        var operations = Operation.values();
+        for (int round = 0; round < 3000; round++) {
+            var instructions = new ArrayList<Instruction>();
+            int depth = 0;
+            for (int i = random.nextInt(60); i > 0; i--) {
+                // 大多数指令合法，偶尔越界、除以 0 或者 ILL
+                var op = operations[random.nextInt(operations.length)];
+                if (op == Operation.ILL && random.nextInt(5) != 0) {
+                    op = Operation.LIT;
+                }
+                int x = 0;
+                if (op == Operation.LIT) {
+                    x = random.nextInt(7) - 3;
+                } else if (op == Operation.LOD || op == Operation.STO) {
+                    x = random.nextInt(depth + 2) - 1;
+                }
+                instructions.add(new Instruction(op, x));
+                depth = Math.max(0, depth + (op == Operation.LIT || op == Operation.LOD ? 1
+                        : op == Operation.ILL ? 0 : -1));
+            }
+            assertSameEngines(instructions);
+        }
+    }
+
+    @Test
+    public void testEnginesOnPrograms() throws Exception {
+        try (var files = Files.list(Path.of("samples"))) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                List<Instruction> instructions;
+                try {
+                    instructions = new Analyser(new Tokenizer(Files.readAllBytes(file))).analyse();
+                } catch (CompileError e) {
+                    continue;
+                }
+                assertSameEngines(instructions);
+            }
+        }
+        var source = new StringBuilder("begin\nconst c = 7;\nvar a = c * (c - 1 + -2);\nvar b = 1;\n");
+        for (int i = 0; i < 200; i++) {
+            source.append("var v").append(i).append(" = a / (").append(i % 5).append(" - 2) - ").append(i)
+                    .append(";\n");
+        }
+        for (int i = 0; i < 200; i++) {
+            source.append("b = v").append(i).append(" * b + a;\nprint(b - v").append(i).append(");\na = -v")
+                    .append((i * 7) % 200).append(";\n");
+        }
+        source.append("end\n");
+        assertSameEngines(new Analyser(new Tokenizer(source.toString().getBytes(StandardCharsets.UTF_8))).analyse());
+    }
+
     @Test
     public void testPlus() {
         var instructions = new ArrayList<Instruction>();
@@ -0,0 +1,144 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.optimizer.CompileTimeEvaluator;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+
+public class OptimizerTest {
+
+    private static List<Instruction> compile(String source) throws CompileError {
+        return new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8))).analyse();
+    }
+
+    private static String run(List<Instruction> instructions) {
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        try {
+            new MiniVm(instructions, output).Run();
+        } catch (ArithmeticException | IndexOutOfBoundsException e) {
+            output.print(e);
+        }
+        return ostream.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFolding() throws CompileError {
+        var optimizer = Optimizer.standard();
+        var instructions = optimizer.optimize(compile("begin var a = 2*3+4; print(-(-a) * 1 + 0); end"));
+        assertEquals("[LIT 10, LOD 0, WRT]", instructions.toString());
+        assertEquals(12, optimizer.getRemoved());
+    }
+
+    @Test
+    public void testKeepsRuntimeSemantics() throws CompileError {
+        // 溢出回绕，整除向零取整，除以 0 留到运行时
+        var source = "begin print(2147483647 + 1); print(-7 / 2); print(-2147483647 - 1 / -1); print(1 / 0); end";
+        var instructions = compile(source);
+        assertEquals(run(instructions), run(Optimizer.standard().optimize(instructions)));
+    }
+
+    @Test
+    public void testOperandReadingTemporary() throws CompileError {
+        // 没有初值的变量不占栈位置，v4 的 LOD 5 读到的是表达式里的 LIT 0，这个 LIT 0 不能去掉
+        var source = "begin const c0 = 8; var v0 = c0; var v1 = c0; var v2; var v3; var v4 = -0; "
+                + "print(c0); v1 = -(0 + v4); v2 = 2; end";
+        var instructions = compile(source);
+        assertEquals("8\n", run(instructions));
+        assertEquals(run(instructions), run(Optimizer.standard().optimize(instructions)));
+
+        instructions = compile("begin var v0; var v1 = 3; print(0 - (0 - v1)); print(1 * (v1 + 1)); end");
+        assertEquals(run(instructions), run(Optimizer.standard().optimize(instructions)));
+    }
+
+    private static String expression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    return "a";
+                case 1:
+                    return "c";
+                default:
+                    return String.valueOf(random.nextInt(3) == 0 ? 2147483647 : random.nextInt(3));
+            }
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                return "-(" + expression(random, depth - 1) + ")";
+            case 1:
+                return "(" + expression(random, depth - 1) + ")";
+            default:
+                return expression(random, depth - 1) + "+-*/".charAt(random.nextInt(4)) + expression(random, depth - 1);
+        }
+    }
+
+    @Test
+    public void testRandomProgramsBehaveTheSame() throws CompileError {
+        var random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            var sb = new StringBuilder("begin const c = 3; var a = 1;");
+            for (int j = 0; j < 4; j++) {
+                if (random.nextBoolean()) {
+                    sb.append(" a = ").append(expression(random, 4)).append(";");
+                } else {
+                    sb.append(" print(-(").append(expression(random, 4)).append("));");
+                }
+            }
+            sb.append(" end");
+            var instructions = compile(sb.toString());
+            var optimized = Optimizer.standard().optimize(instructions);
+            assertEquals(sb.toString(), run(instructions), run(optimized));
+        }
+    }
+
+    private static List<Instruction> evaluate(String source) throws CompileError {
+        var instructions = new ArrayList<Instruction>();
+        new Analyser(new Tokenizer(source.getBytes(StandardCharsets.UTF_8)), new CompileTimeEvaluator(instructions::add))
+                .analyse();
+        return instructions;
+    }
+
+    @Test
+    public void testCompileTimeEvaluation() throws CompileError {
+        assertEquals("[LIT 42, WRT, LIT -2147483648, WRT]",
+                evaluate("begin const c = 6; var a = 7; print(a * c); a = 2147483647; print(a + 1); end").toString());
+        // 出错的地方换成同样会出错的指令，后面的都不要了
+        var source = "begin var a = 1; print(a); a = a - 1; print(2 / a); print(3); end";
+        assertEquals("[LIT 1, WRT, LIT 0, LIT 0, DIV]", evaluate(source).toString());
+        assertEquals(run(compile(source)), run(evaluate(source)));
+        // 先声明后赋值的变量读到了不存在的栈位置
+        source = "begin var a; var b = 1; print(b); end";
+        assertEquals(run(compile(source)), run(evaluate(source)));
+    }
+
+    @Test
+    public void testRandomProgramsEvaluateTheSame() throws CompileError {
+        var random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            var sb = new StringBuilder("begin const c = 3; var a = 1;");
+            for (int j = 0; j < 4; j++) {
+                if (random.nextBoolean()) {
+                    sb.append(" a = ").append(expression(random, 4)).append(";");
+                } else {
+                    sb.append(" print(-(").append(expression(random, 4)).append("));");
+                }
+            }
+            sb.append(" end");
+            assertEquals(sb.toString(), run(compile(sb.toString())), run(evaluate(sb.toString())));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class OptionsTest {
+    private static Options argparse(String... args) {
+        var sink = new PrintStream(new ByteArrayOutputStream());
+        return CommandLine.parse(args, sink, sink);
+    }
+
+    @Test
+    public void testSimpleMatchesArgparse() {
+        var keys = new ArrayList<>(Options.defaults().keySet());
+        keys.add("input");
+        keys.add("output");
+        for (var args : new String[][] { { "-l", "in.txt", "-o", "out.txt" }, { "-t", "-o", "-", "-" },
+                { "--analyse", "--output", "x", "y" }, { "in.txt", "-l", "-t", "-o", "a", "-o", "b" } }) {
+            var simple = Options.parseSimple(args);
+            var full = argparse(args);
+            assertNotNull(String.join(" ", args), simple);
+            assertNotNull(String.join(" ", args), full);
+            for (var key : keys) {
+                assertEquals(key, full.getString(key), simple.getString(key));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherCommandLinesNeedArgparse() {
+        for (var args : new String[][] { { "-l", "in.txt" }, { "-l", "-o", "out.txt" }, { "-lt", "in.txt", "-o", "x" },
+                { "--analy", "in.txt", "-o", "x" }, { "-l", "-O", "in.txt", "-o", "x" }, { "-l", "a", "b", "-o", "x" },
+                { "-l", "in.txt", "-o", "-t" }, { "-h" } }) {
+            assertNull(String.join(" ", args), Options.parseSimple(args));
+        }
+    }
+}
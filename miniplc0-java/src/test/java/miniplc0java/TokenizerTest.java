@@ -3,6 +3,238 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.SourceReader;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.Pos;
+
 public class TokenizerTest {
 
+    private static final String SOURCE = "begin\n  var a = 12;\n  print(a);\nend\n";
+
+    private String describe(Tokenizer tokenizer) {
+        var sb = new StringBuilder();
+        while (true) {
+            try {
+                var token = tokenizer.nextToken();
+                sb.append(token).append(' ').append(token.getEndPos()).append('\n');
+                if (token.getTokenType() == TokenType.EOF) {
+                    return sb.toString();
+                }
+            } catch (TokenizeError e) {
+                // 两种实现出错以后都能接着往下分析
+                sb.append(e).append('\n');
+            }
+        }
+    }
+
+    private void assertSameEngines(String source) {
+        var expected = describe(new Tokenizer(new StringIter(source)));
+        var actual = describe(new Tokenizer(source.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * 去掉最后一行的 EOF
+     */
+    private static String withoutEof(String described) {
+        return described.substring(0, described.lastIndexOf('\n', described.length() - 2) + 1);
+    }
+
+    /**
+     * 扁平缓冲区（先整体解码再交给 StringIter，以及直接按字节分析）和原来用 Scanner 按行读取的结果相同。
+     * 只有 EOF 的位置不同：Scanner 在每行后面补一个 \n，而且会丢掉末尾只有空白的行
+     */
+    private void assertSameAsScanner(String source) {
+        var bytes = source.getBytes(StandardCharsets.UTF_8);
+        var scanner = describe(new Tokenizer(new StringIter(new Scanner(source))));
+        var flat = describe(new Tokenizer(new StringIter(SourceReader.decode(bytes, bytes.length))));
+        assertEquals(withoutEof(scanner), withoutEof(flat));
+        assertEquals(flat, describe(new Tokenizer(bytes)));
+    }
+
+    @Test
+    public void testFlatMatchesScanner() {
+        assertSameAsScanner(SOURCE);
+        assertSameAsScanner("begin\r\n  var a = 12;\r\n\r\n  print(a);\r\nend\r\n");
+        // 最后一个 token 正好到输入的末尾，数字和标识符都要读到末尾再退回去
+        assertSameAsScanner("begin\n  var a = 12;\n  print(a);\nend");
+        assertSameAsScanner("begin var abc = 12");
+        assertSameAsScanner("begin var a = 12\r\n$");
+        // 多字节的 UTF-8：位置按字符算，不按字节算
+        assertSameAsScanner("begin\r\n  var 变量 = 1; print(变量);\r\nend");
+        assertSameAsScanner("begin var \ud83d\ude00 = 1; var éé = 2;\néé");
+    }
+
+    @Test
+    public void testEofWithoutFinalNewline() throws TokenizeError {
+        var source = "begin\r\nend";
+        var scanner = new Tokenizer(new StringIter(new Scanner(source)));
+        var flat = new Tokenizer(source.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(scanner.nextToken().toString(), flat.nextToken().toString());
+        }
+        // Scanner 补上的 \n 让 EOF 落在下一行，扁平缓冲区的 EOF 就在 end 后面
+        assertEquals("Pos(row: 2, col: 0)", scanner.nextToken().getStartPos().toString());
+        assertEquals("Pos(row: 1, col: 3)", flat.nextToken().getStartPos().toString());
+    }
+
+    @Test
+    public void testUnreadAtBufferEnd() {
+        var bytes = "ab\u00e9".getBytes(StandardCharsets.UTF_8);
+        var it = new StringIter(SourceReader.decode(bytes, bytes.length));
+        assertEquals('a', it.nextChar());
+        assertEquals('b', it.nextChar());
+        assertEquals('\u00e9', it.nextChar());
+        assertTrue(it.isEOF());
+        assertEquals(0, it.nextChar());
+        it.unreadLast();
+        assertFalse(it.isEOF());
+        assertEquals(2, it.currentPos());
+        assertEquals('\u00e9', it.nextChar());
+        assertTrue(it.isEOF());
+    }
+
+    @Test
+    public void testPositions() throws TokenizeError {
+        var tokenizer = new Tokenizer(new StringIter(SOURCE));
+        tokenizer.nextToken();
+        var var = tokenizer.nextToken();
+        assertEquals(TokenType.Var, var.getTokenType());
+        assertEquals(8, var.getStartOffset());
+        assertEquals("Pos(row: 1, col: 2)", var.getStartPos().toString());
+        assertEquals("Pos(row: 1, col: 5)", var.getEndPos().toString());
+    }
+
+    @Test
+    public void testStreamingMatchesFlat() throws TokenizeError {
+        var expected = describe(new Tokenizer(new StringIter(SOURCE)));
+        // 窗口小到每次只能读进一个字符
+        var actual = describe(new Tokenizer(new StringIter(new StringReader(SOURCE), 2)));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testStreamingWindowBoundary() throws TokenizeError {
+        // 标识符、数字、\r\n 和多字节字符跨过各种大小的窗口的边界，最后一个 token 读到输入的末尾
+        var source = "begin\r\n  var abcdef = 1234567;\r\n  var 变量 = abcdef;\r\n  print(变量 + 89)$ end\r\n  abc";
+        var expected = describe(new Tokenizer(new StringIter(source)));
+        for (int window = 2; window <= 9; window++) {
+            var actual = describe(new Tokenizer(new StringIter(new StringReader(source), window)));
+            assertEquals("window " + window, expected, actual);
+        }
+    }
+
+    @Test
+    public void testUnreadAtWindowBoundary() {
+        var it = new StringIter(new StringReader("abcd"), 2);
+        assertEquals('a', it.nextChar());
+        assertEquals('b', it.nextChar());
+        // 窗口已经读完，还没补充的时候退回去
+        it.unreadLast();
+        assertEquals('b', it.nextChar());
+        // peekChar() 补充了窗口，b 留在开头，仍然能退回去
+        assertEquals('c', it.peekChar());
+        it.unreadLast();
+        assertEquals(1, it.currentPos());
+        assertEquals('b', it.nextChar());
+        assertEquals('c', it.nextChar());
+        assertEquals('d', it.nextChar());
+        assertTrue(it.isEOF());
+        it.unreadLast();
+        assertEquals('d', it.nextChar());
+        assertEquals(4, it.currentPos());
+        assertEquals("Pos(row: 0, col: 3)", it.getLineIndex().toPos(3).toString());
+    }
+
+    @Test
+    public void testAsciiMatchesUnicode() {
+        assertSameEngines(SOURCE);
+        assertSameEngines("begin\r\n\tconst x1y=+007;\u000B\f\r\nprint((x1y)/2-3*4);end");
+        assertSameEngines("begin var a = 2147483647; var b = 2147483648; $ # end");
+        assertSameEngines("");
+        // 足够长的空白、数字和标识符，打开宽路径（-Dminiplc0java.wideScan=true）时会走一次 8 个字节的扫描
+        assertSameEngines("begin\n" + " ".repeat(37) + "var abcdefghijklmnopqrstuvwxyz0123 = 000000000000012;\n"
+                + "\t".repeat(19) + "end" + " \n".repeat(13));
+    }
+
+    @Test
+    public void testFallbackToUnicode() {
+        // 非 ASCII 字符出现在空白、标识符和数字中
+        assertSameEngines("begin\n  var 变量 = 3;\u3000print(变量);\n");
+        assertSameEngines("begin var abc变量 = 1; end");
+        assertSameEngines("begin var a = 12\u0663; end");
+    }
+
+    @Test
+    public void testNameIds() throws TokenizeError {
+        // 前一半走 ASCII 快速路径，\u00e9 之后换成 Unicode 版本，编号要接得上
+        var tokenizer = new Tokenizer("foo bar foo \u00e9 bar baz begin".getBytes(StandardCharsets.UTF_8));
+        int[] expected = { 0, 1, 0, 2, 1, 3, -1 };
+        for (int id : expected) {
+            assertEquals(id, tokenizer.nextToken().getNameId());
+        }
+        assertEquals(4, tokenizer.getNameTable().size());
+        assertEquals("baz", tokenizer.getNameTable().name(3));
+    }
+
+    @Test
+    public void testErrorPosition() {
+        var tokenizer = new Tokenizer(new StringIter("begin\n  $"));
+        try {
+            tokenizer.nextToken();
+            tokenizer.nextToken();
+            fail("should not accept '$'");
+        } catch (TokenizeError e) {
+            Pos pos = e.getPos();
+            assertEquals(1, pos.row);
+            assertEquals(2, pos.col);
+        }
+    }
+
+    @Test
+    public void testBatchDefersError() throws TokenizeError {
+        var tokenizer = new Tokenizer("begin a 12 $ end".getBytes(StandardCharsets.UTF_8));
+        var buffer = new TokenBuffer();
+        // 出错之前的三个 token 先返回，错误留到下一次
+        assertEquals(3, tokenizer.nextTokens(buffer, 100));
+        assertEquals(TokenType.Ident, buffer.type(1));
+        assertEquals(12, buffer.value(2));
+        assertEquals("Pos(row: 0, col: 7)", buffer.toToken(1).getEndPos().toString());
+        try {
+            tokenizer.nextTokens(buffer, 100);
+            fail("should not accept '$'");
+        } catch (TokenizeError e) {
+            assertEquals(11, e.getPos().col);
+        }
+        assertEquals(2, tokenizer.nextTokens(buffer, 100));
+        assertEquals(TokenType.End, buffer.type(3));
+        assertEquals(TokenType.EOF, buffer.type(4));
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        // 足够切成好几块，中间夹着错误，标识符在各块中第一次出现的顺序不同
+        var sb = new StringBuilder("begin\n");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("v").append(i % 997).append(" = (x").append(i % 13).append(" + ").append(i).append(")*2;\n");
+            if (i % 4999 == 0) {
+                sb.append("$ 99999999999 ");
+            }
+        }
+        sb.append("end\t$");
+        var source = sb.toString().getBytes(StandardCharsets.UTF_8);
+        var sequential = new Tokenizer(source);
+        var parallel = new Tokenizer(source, source.length, 4);
+        assertEquals(describe(sequential), describe(parallel));
+        assertEquals(sequential.getNameTable().size(), parallel.getNameTable().size());
+        assertEquals(sequential.getNameTable().name(500), parallel.getNameTable().name(500));
+    }
 }